@@ -7,6 +7,16 @@ plugins {
 group = "io.bridgekit"
 version = "1.0-SNAPSHOT"
 
+// Micro-benchmarks live in src/jmh/java and can see everything in main (including package-private classes).
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+configurations["jmhRuntimeOnly"].extendsFrom(configurations.runtimeOnly.get())
+
 repositories {
     mavenCentral()
 }
@@ -19,6 +29,9 @@ dependencies {
 
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
 }
 
 application {
@@ -28,3 +41,11 @@ application {
 tasks.test {
     useJUnitPlatform()
 }
+
+// Runs the JMH benchmarks, e.g. "./gradlew jmh --args='DecodeCache'" to only run the ones matching a pattern.
+tasks.register<JavaExec>("jmh") {
+    group = "verification"
+    description = "Runs the JMH micro-benchmarks."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+}
@@ -0,0 +1,86 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static io.bridgekit.nats.Utils.marshalJSON;
+import static io.bridgekit.nats.Utils.unmarshalJSON;
+import io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction;
+
+/**
+ * How much cheaper is reading an entry we've already decoded once? Both benchmarks read the same transactions
+ * over and over, the way the near cache/query index watchers and repeated get() calls do. One parses the JSON
+ * every time like the store used to; the other goes through the DecodeCache, which only hands back a copy.
+ *
+ * <pre>
+ * ./gradlew jmh --args='DecodeCacheBenchmark'
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecodeCacheBenchmark {
+    /**
+     * How many different keys we cycle through. Keep it under the cache size so we're measuring hits.
+     */
+    @Param({ "1000" })
+    private int keys;
+
+    private String[] ids;
+    private byte[][] values;
+    private DecodeCache<Transaction> cache;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        ids = new String[keys];
+        values = new byte[keys][];
+        cache = new DecodeCache<>(Transaction.class, keys * 2);
+        for (int i = 0; i < keys; i++) {
+            var t = new Transaction();
+            t.transactionID = "TX-" + i;
+            t.orderID = "ORD-" + i;
+            t.total = 1_999L + i;
+            t.status = Transaction.STATUS_CHARGED;
+            t.processorID = Transaction.PROCESSOR_STRIPE;
+            t.processorToken = "tok_" + Integer.toHexString(i * 31 + 7);
+
+            ids[i] = t.transactionID;
+            values[i] = marshalJSON(t).getBytes(UTF_8);
+            cache.decode(ids[i], 1, values[i]);
+        }
+    }
+
+    @Benchmark
+    public Transaction parseEveryTime() {
+        int i = nextKey();
+        return unmarshalJSON(values[i], Transaction.class);
+    }
+
+    @Benchmark
+    public Transaction decodeCache() {
+        int i = nextKey();
+        return cache.decode(ids[i], 1, values[i]);
+    }
+
+    private int nextKey() {
+        int i = next;
+        next = i + 1 == keys ? 0 : i + 1;
+        return i;
+    }
+}
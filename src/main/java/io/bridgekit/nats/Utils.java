@@ -1,6 +1,7 @@
 package io.bridgekit.nats;
 
 import java.io.File;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.Optional;
@@ -170,6 +171,13 @@ public class Utils {
         return GSON.toJson(object);
     }
 
+    /**
+     * Streams the object's JSON directly to the given writer/buffer without building an intermediate String.
+     */
+    public static void marshalJSON(Object object, Appendable out) {
+        GSON.toJson(object, out);
+    }
+
     /**
      * Parses the given JSON and overlays its values onto a new instance of the given type.
      */
@@ -184,6 +192,13 @@ public class Utils {
         return GSON.fromJson(json, clazz);
     }
 
+    /**
+     * Parses the JSON as it's read from the given source and overlays its values onto a new instance of the given type.
+     */
+    public static <T> T unmarshalJSON(Reader json, Class<T> clazz) {
+        return GSON.fromJson(json, clazz);
+    }
+
     /**
      * Returns true if the given string is non-null with at least one non-whitespace character.
      */
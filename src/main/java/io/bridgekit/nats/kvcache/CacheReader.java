@@ -1,18 +1,16 @@
 package io.bridgekit.nats.kvcache;
 
-import java.io.IOException;
+import java.time.Duration;
 
 import static io.bridgekit.nats.Utils.sleepSeconds;
 import static io.bridgekit.nats.kvcache.CacheWriter.connectKeyValueStore;
 import io.bridgekit.nats.EnterListener;
 import io.bridgekit.nats.Logger;
-import io.nats.client.JetStreamApiException;
-import io.nats.client.KeyValue;
 import io.nats.client.Nats;
 
 /**
- * This simulates remote, read-only access to the cache entries updated by the CacheWriter. Every 5
- * seconds it fetches all 5 users' cached totals and prints them to the console.
+ * This simulates remote, read-only access to the cache entries updated by the CacheWriter. It mirrors every
+ * account's total locally (see KeyRangeMirror) and prints all 5 users' totals to the console every 5 seconds.
  *
  * <pre>
  * # Usage
@@ -27,30 +25,33 @@ public class CacheReader {
         var nats = Nats.connect("nats://localhost:4222");
         var kv = connectKeyValueStore(nats, "account-api-calls");
 
+        // Rather than fetching each account's total every time we print, keep a live copy of all of them.
+        var accounts = new KeyRangeMirror(kv, "account.>", Duration.ofSeconds(5));
+
         logger.info("Press ENTER to quit.");
         var enter = new EnterListener();
 
         while (enter.notPressed()) {
-            printUserTotals(kv);
+            printUserTotals(accounts);
             sleepSeconds(5);
         }
 
         logger.info("Bye, bye!");
+        accounts.close();
         nats.close();
     }
 
     /**
-     * Looks up the current request totals for all 5 accounts and writes their values to the console.
+     * Writes the current request totals for all 5 accounts to the console. They all come from the same snapshot,
+     * so they add up to a total that actually existed at some moment, and printing them costs zero round trips.
      */
-    private static void printUserTotals(KeyValue kv) throws JetStreamApiException, IOException {
+    private static void printUserTotals(KeyRangeMirror accounts) {
         logger.info("");
 
+        var snapshot = accounts.snapshot();
         for (int i = 0; i < 5; i++) {
             var accountKey = "account." + i + ".request-total";
-            var entry = kv.get(accountKey);
-            var currentTotal = entry == null ? 0 : entry.getValueAsLong();
-
-            logger.info("%s -> %d", accountKey, currentTotal);
+            logger.info("%s -> %d", accountKey, snapshot.getLong(accountKey, 0));
         }
     }
 }
@@ -1,13 +1,12 @@
 package io.bridgekit.nats.kvcache;
 
-import java.io.IOException;
+import java.time.Duration;
 
 import static io.bridgekit.nats.Utils.randomInt;
 import static io.bridgekit.nats.Utils.sleepSeconds;
 import io.bridgekit.nats.EnterListener;
 import io.bridgekit.nats.Logger;
 import io.nats.client.Connection;
-import io.nats.client.JetStreamApiException;
 import io.nats.client.KeyValue;
 import io.nats.client.Nats;
 import io.nats.client.api.KeyValueConfiguration;
@@ -31,33 +30,35 @@ public class CacheWriter {
         var nats = Nats.connect("nats://localhost:4222");
         var kv = connectKeyValueStore(nats, "account-api-calls");
 
+        // Increments pile up in memory and get merged into the bucket 4 times a second.
+        var counter = new DistributedCounter(kv, Duration.ofMillis(250));
+
         logger.info("Press ENTER to quit.");
         var enter = new EnterListener();
 
         while (enter.notPressed()) {
-            incrementRandomAccount(kv);
+            simulateApiCalls(counter);
             sleepSeconds(1);
         }
 
+        counter.close();
         logger.info("Bye, bye!");
         nats.close();
     }
 
     /**
-     * In this fake example, there are 5 accounts. This randomly picks one of those accounts and
-     * increments their API request count by one.
+     * In this fake example, there are 5 accounts. Every second, a burst of API calls comes in from randomly
+     * picked accounts and we bump each account's request count once per call. Each increment is purely local,
+     * so even a huge burst doesn't cost a single round trip to NATS; the counter flushes the totals for us.
      */
-    private static void incrementRandomAccount(KeyValue kv) throws JetStreamApiException, IOException {
-        // Pick one of our 5 random accounts.
-        var accountKey = "account." + randomInt(0, 5) + ".request-total";
-
-        // Fetch the current total and increment it. Null entry means it wasn't in the store.
-        var entry = kv.get(accountKey);
-        var newTotal = entry == null ? 1 : (entry.getValueAsLong() + 1);
-
-        // Write the new total to the K/V store.
-        logger.info("Incrementing %s -> %d", accountKey, newTotal);
-        kv.put(accountKey, newTotal); // Value can be a String, Number, or byte[]
+    private static void simulateApiCalls(DistributedCounter counter) {
+        int numCalls = randomInt(1, 10_000);
+        for (int i = 0; i < numCalls; i++) {
+            // Pick one of our 5 random accounts.
+            var accountKey = "account." + randomInt(0, 5) + ".request-total";
+            counter.increment(accountKey);
+        }
+        logger.info("Counted %d API calls (%d flushes, %d conflicts so far)", numCalls, counter.flushes(), counter.conflicts());
     }
 
     public static KeyValue connectKeyValueStore(Connection nats, String storeName) throws Exception {
@@ -0,0 +1,229 @@
+package io.bridgekit.nats.kvcache;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.bridgekit.nats.Logger;
+import io.nats.client.JetStreamApiException;
+import io.nats.client.KeyValue;
+
+/**
+ * Counters stored in a NATS key/value bucket that lots of threads (and lots of instances) can bump at once
+ * without losing counts. A plain get-then-put costs two round trips per increment, and if two writers read the
+ * same total, one of their increments just disappears.
+ * <p>
+ * Instead, increment() only touches memory: each key gets a LongAdder, which spreads concurrent updates over
+ * several cells so threads don't fight over one hot variable. Every so often, we add whatever has piled up to
+ * the stored total using the entry's revision, so if another instance wrote to the key in the meantime we just
+ * re-read and add our delta to their total instead. Thousands of increments become one write per key per flush.
+ * <p>
+ * The stored totals lag behind by up to one flush interval. If you need to know the exact total right now (e.g.
+ * to enforce a hard limit), use incrementExact(), which skips the local accumulation and writes straight through.
+ * <p>
+ * Totals are stored as plain numbers (just like kv.put(key, 42) does), so anything reading the bucket with
+ * getValueAsLong() keeps working.
+ */
+public class DistributedCounter implements AutoCloseable {
+    private static final int MAX_MERGE_ATTEMPTS = 10;
+    private static final int WRONG_LAST_SEQUENCE = 10071;
+
+    private final Logger logger = Logger.instance(DistributedCounter.class);
+    private final KeyValue kv;
+    private final Map<String, Cell> cells = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * @param kv            The bucket the totals live in.
+     * @param flushInterval How often to write locally accumulated increments to the bucket.
+     */
+    public DistributedCounter(KeyValue kv, Duration flushInterval) {
+        this.kv = kv;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "counter-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval.toMillis(), flushInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds one to the counter. This never blocks or talks to NATS.
+     */
+    public void increment(String key) {
+        add(key, 1);
+    }
+
+    /**
+     * Adds some amount (possibly negative) to the counter. This never blocks or talks to NATS.
+     */
+    public void add(String key, long delta) {
+        cells.computeIfAbsent(key, k -> new Cell()).total.add(delta);
+    }
+
+    /**
+     * Adds to the stored total right away rather than waiting for the next flush, and returns the new total. This
+     * costs at least two round trips, so only use it when you really need the exact number. The total includes
+     * any of this instance's local increments that have been flushed, but not ones still waiting to be.
+     */
+    public long incrementExact(String key, long delta) {
+        try {
+            return merge(key, delta);
+        }
+        catch (IOException | JetStreamApiException e) {
+            throw new RuntimeException(e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The stored total plus whatever this instance has accumulated but not flushed yet.
+     */
+    public long get(String key) {
+        try {
+            var entry = kv.get(key);
+            var stored = entry == null ? 0 : entry.getValueAsLong();
+            var cell = cells.get(key);
+            return cell == null ? stored : stored + cell.unflushed();
+        }
+        catch (IOException | JetStreamApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes every key's accumulated increments to the bucket. This runs on a timer, but you can call it yourself
+     * (e.g. before shutting down) to make sure nothing is left behind.
+     */
+    public synchronized void flush() {
+        for (var entry : cells.entrySet()) {
+            var cell = entry.getValue();
+            // We never reset the adder; increments that race with this read just show up in the next delta.
+            long sum = cell.total.sum();
+            long delta = sum - cell.flushed;
+            if (delta == 0) {
+                continue;
+            }
+
+            try {
+                merge(entry.getKey(), delta);
+                cell.flushed = sum;
+                flushes.increment();
+            }
+            catch (Exception e) {
+                // The delta is still unflushed, so the next round will pick it up.
+                logger.error(e, "Unable to flush counter: %s", entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * How many times a flush wrote a delta to the bucket.
+     */
+    public long flushes() {
+        return flushes.sum();
+    }
+
+    /**
+     * How many times another writer beat us to a key and we had to re-read it.
+     */
+    public long conflicts() {
+        return conflicts.sum();
+    }
+
+    /**
+     * Flushes whatever's left and stops the timer.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        }
+        catch (Exception e) {
+            logger.error(e, "Counter flush failed");
+        }
+    }
+
+    /**
+     * Adds the delta to the stored total, but only if nobody else has written to it since we read it. If they
+     * have, we re-read their total and try again.
+     * <p>
+     * A write that fails with an IOException (usually a timeout) is ambiguous: the server may well have applied it
+     * and we just never heard back. Blindly retrying would add the delta twice, so we re-read the key first. If
+     * it has moved past the revision we read and holds exactly the total we tried to write, we assume that was
+     * us and call it done. (Another writer landing the exact same total in that same window would fool us, but
+     * that's a far smaller window than "every timeout double counts".)
+     */
+    private long merge(String key, long delta) throws IOException, JetStreamApiException, InterruptedException {
+        for (int attempt = 1; attempt <= MAX_MERGE_ATTEMPTS; attempt++) {
+            var entry = kv.get(key);
+            var revision = entry == null ? 0 : entry.getRevision();
+            var total = (entry == null ? 0 : entry.getValueAsLong()) + delta;
+            var value = String.valueOf(total).getBytes(UTF_8);
+            try {
+                if (entry == null) {
+                    kv.create(key, value);
+                }
+                else {
+                    kv.update(key, value, revision);
+                }
+                return total;
+            }
+            catch (JetStreamApiException e) {
+                if (e.getApiErrorCode() != WRONG_LAST_SEQUENCE) {
+                    throw e;
+                }
+                conflicts.increment();
+                Thread.sleep(attempt);
+            }
+            catch (IOException e) {
+                if (landed(key, revision, total)) {
+                    logger.info("Counter write timed out, but it made it anyway: %s", key);
+                    return total;
+                }
+                logger.error(e, "Counter write failed; retrying: %s", key);
+            }
+        }
+        throw new IllegalStateException("Too much contention updating counter: " + key);
+    }
+
+    /**
+     * Checks whether a write whose outcome we don't know actually made it to the bucket.
+     *
+     * @param revision The revision we based the write on (0 if the key didn't exist).
+     * @param total    The total we tried to write.
+     */
+    private boolean landed(String key, long revision, long total) throws IOException, JetStreamApiException {
+        var entry = kv.get(key);
+        return entry != null && entry.getRevision() > revision && entry.getValueAsLong() == total;
+    }
+
+    /**
+     * One key's local increments. The adder only ever grows (well, moves by whatever you add), and we remember how
+     * much of it has made it to the bucket so far.
+     */
+    private static class Cell {
+        private final LongAdder total = new LongAdder();
+        private volatile long flushed;
+
+        private long unflushed() {
+            return total.sum() - flushed;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package io.bridgekit.nats.kvcache;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.bridgekit.nats.Logger;
+import io.nats.client.KeyValue;
+import io.nats.client.api.KeyValueEntry;
+import io.nats.client.api.KeyValueOperation;
+import io.nats.client.api.KeyValueWatcher;
+import io.nats.client.impl.NatsKeyValueWatchSubscription;
+
+/**
+ * Keeps a local, always-up-to-date copy of every key in a bucket that matches some pattern (e.g. "account.>").
+ * Rather than polling the bucket with one get() per key, we watch the pattern once: NATS sends us the current
+ * value of every matching key and then every change after that, usually within a millisecond or two of it
+ * happening.
+ * <p>
+ * Reads never touch NATS. snapshot() hands back an immutable copy of the whole range as of some moment, so you
+ * can read as many keys as you like from it and they'll all be from the same point in time; a write that lands
+ * halfway through your loop won't give you half-old, half-new totals. Grabbing a snapshot is just a volatile
+ * read, so it costs the same whether you're mirroring 5 keys or 50,000.
+ */
+public class KeyRangeMirror implements AutoCloseable {
+    /**
+     * While we're behind, publish a new snapshot at least every this many updates...
+     */
+    private static final int MAX_UNPUBLISHED_UPDATES = 1_000;
+
+    /**
+     * ...or this often, whichever comes first.
+     */
+    private static final long MAX_UNPUBLISHED_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger logger = Logger.instance(KeyRangeMirror.class);
+    private final String keyPattern;
+    private final Map<String, KeyValueEntry> working = new HashMap<>();
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final NatsKeyValueWatchSubscription subscription;
+    private volatile Snapshot snapshot = new Snapshot(Map.of(), 0);
+
+    /**
+     * Starts mirroring the matching keys and blocks until the initial values have all arrived (or the timeout
+     * runs out, in which case you'll see whatever has arrived so far and the rest will fill in shortly).
+     *
+     * @param kv          The bucket to mirror.
+     * @param keyPattern  The keys to mirror, using the usual NATS wildcards (e.g. "account.>").
+     * @param loadTimeout How long to wait for the initial values.
+     */
+    public KeyRangeMirror(KeyValue kv, String keyPattern, Duration loadTimeout) {
+        try {
+            this.keyPattern = keyPattern;
+            this.subscription = kv.watch(keyPattern, new Watcher());
+            if (!loaded.await(loadTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.info("Still loading %s; carrying on with a partial mirror.", keyPattern);
+            }
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * An immutable, point-in-time copy of the entire mirrored range.
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Shorthand for snapshot().get(key) when you only need the one key.
+     */
+    public Optional<KeyValueEntry> get(String key) {
+        return snapshot.get(key);
+    }
+
+    @Override
+    public void close() {
+        subscription.unsubscribe();
+    }
+
+    /**
+     * The watch delivers everything on one thread, so the working map doesn't need any locking. Rather than
+     * publishing a fresh copy after every single update, we wait until we've caught up (delta = 0) so that a
+     * burst of updates, like the initial load, only results in one new snapshot. Under a steady stream of writes
+     * we might never quite catch up, though, so we also publish every MAX_UNPUBLISHED_UPDATES updates or
+     * MAX_UNPUBLISHED_NANOS, whichever comes first; otherwise readers could be stuck on an old snapshot forever.
+     */
+    private class Watcher implements KeyValueWatcher {
+        private long revision;
+        private int unpublished;
+        private long lastPublished = System.nanoTime();
+
+        @Override
+        public void watch(KeyValueEntry entry) {
+            if (entry.getOperation() == KeyValueOperation.PUT) {
+                working.put(entry.getKey(), entry);
+            }
+            else {
+                working.remove(entry.getKey());
+            }
+
+            revision = Math.max(revision, entry.getRevision());
+            unpublished++;
+            if (entry.getDelta() == 0
+                || unpublished >= MAX_UNPUBLISHED_UPDATES
+                || System.nanoTime() - lastPublished >= MAX_UNPUBLISHED_NANOS) {
+                publish();
+            }
+        }
+
+        @Override
+        public void endOfData() {
+            publish();
+            loaded.countDown();
+            logger.info("Mirroring %d keys matching %s", working.size(), keyPattern);
+        }
+
+        private void publish() {
+            snapshot = new Snapshot(Map.copyOf(working), revision);
+            unpublished = 0;
+            lastPublished = System.nanoTime();
+        }
+    }
+
+    /**
+     * Every mirrored key's entry as of the moment the snapshot was taken. Deleted keys simply aren't in it.
+     */
+    public static class Snapshot {
+        private final Map<String, KeyValueEntry> entries;
+        private final long revision;
+
+        private Snapshot(Map<String, KeyValueEntry> entries, long revision) {
+            this.entries = entries;
+            this.revision = revision;
+        }
+
+        /** The entry for the key, or empty if it doesn't exist (or isn't in the mirrored range). */
+        public Optional<KeyValueEntry> get(String key) {
+            return Optional.ofNullable(entries.get(key));
+        }
+
+        /** The key's value as a number, or the fallback if it's not there. */
+        public long getLong(String key, long fallback) {
+            var entry = entries.get(key);
+            return entry == null ? fallback : entry.getValueAsLong();
+        }
+
+        /** Every entry in the snapshot, keyed by its key. The map is immutable. */
+        public Map<String, KeyValueEntry> entries() {
+            return entries;
+        }
+
+        /** The newest revision reflected in this snapshot. */
+        public long revision() {
+            return revision;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package io.bridgekit.nats.kvsettings;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static io.bridgekit.nats.Utils.closeQuietly;
 import static io.bridgekit.nats.kvsettings.SettingsWriter.createKeyValueStore;
 import io.bridgekit.nats.EnterListener;
 import io.bridgekit.nats.Logger;
+import io.nats.client.Connection;
 import io.nats.client.Nats;
-import io.nats.client.api.KeyValueWatcher;
 
 /**
  * This is the consumer side of the SettingsWriter demo. Backend services typically need to be fed some sort
@@ -21,29 +26,33 @@ public class SettingsReader {
     private static final Logger logger = Logger.instance(SettingsReader.class);
 
     public static void main(String[] args) throws Exception {
-        logger.info("Connecting to NATS server and K/V store.");
-        var nats = Nats.connect("nats://localhost:4222");
-        var kv = createKeyValueStore(nats, "centralized_config");
+        // The settings we saw last time are saved locally, so we have them the moment we start up. Connecting
+        // to NATS happens in the background; once it does, we only fetch what changed while we were away.
+        var nats = new AtomicReference<Connection>();
+        var settings = new SettingsRegistry("settings.>")
+            .snapshotFile(Path.of("data/settings/centralized_config.snapshot"))
+            .debounce(Duration.ofSeconds(1))
+            .onChange("settings.db.url", url -> logger.info("Reconnecting to database at: %s", url))
+            .onChange("settings.s3.key", key -> logger.info("Rotating S3 secret access key: %s", key))
+            .startAsync(() -> {
+                // If we're being called again, the registry couldn't start watching on the last connection we
+                // handed it, so let that one go before opening a new one.
+                closeQuietly(nats.getAndSet(null));
 
-        logger.info("Setting up watchers to detect configuration changes.");
-        var watcherA = kv.watch("settings.db.url", (SettingsListener) entry -> {
-            logger.info("Reconnecting to database at: %s", entry.getValueAsString());
-        });
-        var watcherB = kv.watch("settings.s3.key", (SettingsListener) entry -> {
-            logger.info("Rotating S3 secret access key: %s", entry.getValueAsString());
-        });
+                logger.info("Connecting to NATS server and K/V store.");
+                var connection = Nats.connect("nats://localhost:4222");
+                nats.set(connection);
+                return createKeyValueStore(connection, "centralized_config");
+            });
 
+        // Listeners run on the registry's own thread and only fire once a setting has been left alone for a
+        // second, so a burst of edits to the database URL results in one reconnect rather than five.
+        logger.info("Current database URL: %s", settings.getString("settings.db.url", "(not set)"));
         logger.info("Press ENTER to quit.");
         new EnterListener().awaitPressed();
 
         logger.info("Bye, bye!");
-        watcherA.close();
-        watcherB.close();
-        nats.close();
-    }
-
-    private interface SettingsListener extends KeyValueWatcher {
-        @Override
-        default void endOfData() {}
+        settings.close();
+        closeQuietly(nats.get());
     }
 }
@@ -0,0 +1,448 @@
+package io.bridgekit.nats.kvsettings;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import io.bridgekit.nats.Logger;
+import io.nats.client.KeyValue;
+import io.nats.client.api.KeyValueEntry;
+import io.nats.client.api.KeyValueOperation;
+import io.nats.client.api.KeyValueWatcher;
+import io.nats.client.impl.NatsKeyValueWatchSubscription;
+
+/**
+ * A local, always-current copy of your service's settings, kept up to date by watching the settings bucket.
+ * Reading a setting is just a map lookup against an immutable snapshot that we swap out whenever something
+ * changes, so there's no locking and no round trip to NATS; call getInt() in the middle of a hot loop if you like.
+ * Numbers and booleans are parsed once when the setting changes rather than every time you read them.
+ * <p>
+ * You can also register listeners that react when a setting changes (e.g. reconnect to a new database URL).
+ * Listeners run on their own thread, never on the NATS dispatcher thread, so a slow reconnect won't hold up
+ * other updates. They're also debounced: if a setting changes five times in quick succession, your listener runs
+ * once, with the final value, after things have been quiet for the debounce window.
+ * <p>
+ * If you give it a snapshotFile(), the last settings we saw (and the revision we saw them at) are saved locally
+ * and loaded back the next time you start up, so your service has its settings immediately rather than waiting
+ * on NATS. startAsync() then connects in the background and only asks NATS for the changes made since the saved
+ * revision; anything that changed while you were down shows up (and fires its listeners) a moment later. If the
+ * bucket was recreated or purged since the snapshot was saved, the saved revision means nothing anymore, so we
+ * reload every setting from scratch instead.
+ *
+ * <pre>
+ * var settings = new SettingsRegistry(kv, "settings.>")
+ *     .onChange("settings.db.url", url -> reconnect(url))
+ *     .start();
+ *
+ * int poolSize = settings.getInt("settings.db.pool-size", 10);
+ *
+ * // Or, to start up without waiting on NATS at all:
+ * var settings = new SettingsRegistry("settings.>")
+ *     .snapshotFile(Path.of("data/settings/config.snapshot"))
+ *     .onChange("settings.db.url", url -> reconnect(url))
+ *     .startAsync(() -> connectToSettingsBucket());
+ * </pre>
+ */
+public class SettingsRegistry implements AutoCloseable {
+    private final Logger logger = Logger.instance(SettingsRegistry.class);
+    private final String keyPattern;
+    private final Map<String, List<Consumer<String>>> listeners = new ConcurrentHashMap<>();
+    private final Map<String, ScheduledFuture<?>> pendingDispatches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService dispatcher;
+    private final AtomicBoolean saveScheduled = new AtomicBoolean();
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private volatile Map<String, Setting> snapshot = Map.of();
+    private volatile long revision;
+    private volatile long streamCreated;
+    private volatile Set<String> staleKeys;
+    private volatile boolean closed;
+    private KeyValue kv;
+    private Path snapshotFile;
+    private Duration debounce = Duration.ofMillis(500);
+    private Duration loadTimeout = Duration.ofSeconds(5);
+    private volatile NatsKeyValueWatchSubscription subscription;
+
+    /**
+     * @param kv         The bucket where the settings live.
+     * @param keyPattern The settings to track, using the usual NATS wildcards (e.g. "settings.>").
+     */
+    public SettingsRegistry(KeyValue kv, String keyPattern) {
+        this(keyPattern);
+        this.kv = kv;
+    }
+
+    /**
+     * Creates a registry that you'll hand the bucket to later via startAsync().
+     *
+     * @param keyPattern The settings to track, using the usual NATS wildcards (e.g. "settings.>").
+     */
+    public SettingsRegistry(String keyPattern) {
+        this.keyPattern = keyPattern;
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "settings-listeners");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * How long a setting has to go without changing before we tell its listeners about it.
+     *
+     * @return this
+     */
+    public SettingsRegistry debounce(Duration debounce) {
+        this.debounce = debounce;
+        return this;
+    }
+
+    /**
+     * How long start() waits for the initial values to arrive before giving up.
+     *
+     * @return this
+     */
+    public SettingsRegistry loadTimeout(Duration loadTimeout) {
+        this.loadTimeout = loadTimeout;
+        return this;
+    }
+
+    /**
+     * Saves the settings to this file whenever they change, and loads whatever was saved there last time right
+     * now, so the getters work before we've even connected to NATS. If the file doesn't exist yet (or can't be
+     * read), we just start from scratch.
+     *
+     * @return this
+     */
+    public SettingsRegistry snapshotFile(Path snapshotFile) {
+        this.snapshotFile = snapshotFile;
+        var saved = SettingsSnapshotFile.read(snapshotFile);
+        if (saved != null) {
+            this.snapshot = saved.settings();
+            this.revision = saved.revision();
+            this.streamCreated = saved.streamCreated();
+            logger.info("Loaded %d settings from %s (revision %d)", snapshot.size(), snapshotFile, revision);
+        }
+        return this;
+    }
+
+    /**
+     * Registers a listener that is called with the setting's new value whenever it changes (and once with its
+     * initial value if you register before calling start()). The value is null if the setting was deleted.
+     *
+     * @return this
+     */
+    public SettingsRegistry onChange(String key, Consumer<String> listener) {
+        listeners.computeIfAbsent(key, k -> new CopyOnWriteArrayList<>()).add(listener);
+        return this;
+    }
+
+    /**
+     * Starts watching the settings and blocks until the current values have all been loaded, so the getters
+     * return real values as soon as this returns.
+     *
+     * @return this
+     */
+    public SettingsRegistry start() {
+        try {
+            watch(kv);
+            if (!awaitReady(loadTimeout)) {
+                throw new IllegalStateException("Timed out loading settings: " + keyPattern);
+            }
+            return this;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns right away and connects in the background, retrying every couple of seconds until NATS is
+     * reachable. Until then, the getters serve whatever was in the snapshotFile(). Use ready() if you need to
+     * know when we've caught up with the bucket.
+     *
+     * @param connector Connects to NATS and opens the settings bucket.
+     * @return this
+     */
+    public SettingsRegistry startAsync(Callable<KeyValue> connector) {
+        var thread = new Thread(() -> {
+            while (!closed) {
+                try {
+                    this.kv = connector.call();
+                    watch(kv);
+                    return;
+                }
+                catch (Exception e) {
+                    logger.error(e, "Unable to connect to settings bucket; serving saved settings for now");
+                    sleepQuietly(Duration.ofSeconds(2));
+                }
+            }
+        }, "settings-connect");
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    /**
+     * Completes once we've caught up with the bucket, so every setting reflects what's actually in NATS.
+     */
+    public CompletableFuture<Void> ready() {
+        return ready;
+    }
+
+    /**
+     * Everything we currently have (e.g. from the snapshot file) counts as each listener's initial value. Then
+     * we watch for changes, picking up right after the revision we already have. Without a snapshot, that's from
+     * the very beginning, which gets us the current value of every setting.
+     * <p>
+     * A saved revision is only good for the stream it came from, though. If the bucket has been recreated (a
+     * different creation time) or purged (its last sequence is behind ours, or it's empty), picking up after our
+     * revision would silently skip settings. In that case we watch from the beginning, and once we're caught up
+     * we drop any saved settings the bucket no longer has.
+     */
+    private void watch(KeyValue kv) throws Exception {
+        var stream = kv.getStatus().getBackingStreamInfo();
+        var state = stream.getStreamState();
+        long created = stream.getCreateTime().toInstant().toEpochMilli();
+        boolean replaced = created != streamCreated
+            || state.getLastSequence() < revision
+            || (state.getMsgCount() == 0 && !snapshot.isEmpty());
+
+        if (revision > 0 && replaced) {
+            logger.info("Settings bucket changed since our snapshot (revision %d); reloading all settings", revision);
+            var stale = ConcurrentHashMap.<String>newKeySet();
+            stale.addAll(snapshot.keySet());
+            staleKeys = stale;
+            revision = 0;
+        }
+        streamCreated = created;
+
+        snapshot.keySet().forEach(this::scheduleDispatch);
+        subscription = revision > 0
+            ? kv.watch(keyPattern, new Watcher(), revision + 1)
+            : kv.watch(keyPattern, new Watcher());
+    }
+
+    private boolean awaitReady(Duration timeout) throws Exception {
+        try {
+            ready.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            return true;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void sleepQuietly(Duration duration) {
+        try {
+            Thread.sleep(duration.toMillis());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    /**
+     * Returns the setting's value, or the fallback if it isn't set.
+     */
+    public String getString(String key, String fallback) {
+        var setting = snapshot.get(key);
+        return setting == null ? fallback : setting.value;
+    }
+
+    /**
+     * Returns the setting as a number, or the fallback if it isn't set (or isn't a number).
+     */
+    public long getLong(String key, long fallback) {
+        var setting = snapshot.get(key);
+        return setting == null || !setting.numeric ? fallback : setting.longValue;
+    }
+
+    /**
+     * Returns the setting as a number, or the fallback if it isn't set (or isn't a number).
+     */
+    public int getInt(String key, int fallback) {
+        return (int) getLong(key, fallback);
+    }
+
+    /**
+     * Returns true if the setting is "true" (ignoring case), false if it's anything else, or the fallback if
+     * it isn't set.
+     */
+    public boolean getBoolean(String key, boolean fallback) {
+        var setting = snapshot.get(key);
+        return setting == null ? fallback : setting.booleanValue;
+    }
+
+    /**
+     * Every setting we currently know about. The map is immutable and won't change out from under you.
+     */
+    public Map<String, Setting> snapshot() {
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (subscription != null) {
+            subscription.unsubscribe();
+        }
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * Schedules the key's listeners to run once things have been quiet for the debounce window. Each change
+     * pushes the deadline back, and when it finally runs, it reads whatever the latest value is at that point.
+     */
+    private void scheduleDispatch(String key) {
+        if (!listeners.containsKey(key)) {
+            return;
+        }
+
+        pendingDispatches.compute(key, (k, pending) -> {
+            if (pending != null) {
+                pending.cancel(false);
+            }
+            return dispatcher.schedule(() -> dispatch(key), debounce.toMillis(), TimeUnit.MILLISECONDS);
+        });
+    }
+
+    /**
+     * Saves the snapshot on the listener thread (we don't want file I/O on the NATS dispatcher thread). If a
+     * save is already queued up, it'll pick up this change too.
+     */
+    private void scheduleSave() {
+        if (snapshotFile == null || !saveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        dispatcher.execute(() -> {
+            saveScheduled.set(false);
+            // Read the revision before the settings. The watcher updates them in the opposite order, so the
+            // settings we save are never older than the revision we save alongside them.
+            long savedRevision = revision;
+            SettingsSnapshotFile.write(snapshotFile, snapshot, savedRevision, streamCreated);
+        });
+    }
+
+    private void dispatch(String key) {
+        var value = getString(key, null);
+        for (var listener : listeners.getOrDefault(key, List.of())) {
+            try {
+                listener.accept(value);
+            }
+            catch (Exception e) {
+                logger.error(e, "Settings listener failed: %s", key);
+            }
+        }
+    }
+
+    /**
+     * Applies each update to a fresh copy of the snapshot and swaps it in. Settings change rarely and there are
+     * never very many of them, so copying the whole map is cheaper than making every read deal with locks.
+     */
+    private class Watcher implements KeyValueWatcher {
+        @Override
+        public void watch(KeyValueEntry entry) {
+            var next = new HashMap<>(snapshot);
+            if (entry.getOperation() == KeyValueOperation.PUT) {
+                next.put(entry.getKey(), new Setting(entry.getValueAsString(), entry.getRevision()));
+            }
+            else {
+                next.remove(entry.getKey());
+            }
+            snapshot = Map.copyOf(next);
+            revision = Math.max(revision, entry.getRevision());
+            scheduleDispatch(entry.getKey());
+
+            var stale = staleKeys;
+            if (stale != null) {
+                stale.remove(entry.getKey());
+            }
+
+            // Once we're caught up, save what we've got. A burst of changes only results in one save.
+            if (entry.getDelta() == 0) {
+                scheduleSave();
+            }
+        }
+
+        @Override
+        public void endOfData() {
+            dropStaleKeys();
+            logger.info("Loaded %d settings matching %s (revision %d)", snapshot.size(), keyPattern, revision);
+            scheduleSave();
+            ready.complete(null);
+        }
+    }
+
+    /**
+     * After reloading a recreated/purged bucket from scratch, forgets the saved settings that never showed up.
+     */
+    private void dropStaleKeys() {
+        var stale = staleKeys;
+        if (stale == null) {
+            return;
+        }
+        staleKeys = null;
+        if (stale.isEmpty()) {
+            return;
+        }
+
+        var next = new HashMap<>(snapshot);
+        next.keySet().removeAll(stale);
+        snapshot = Map.copyOf(next);
+        stale.forEach(this::scheduleDispatch);
+        logger.info("Dropped %d saved settings that are no longer in the bucket", stale.size());
+    }
+
+    /**
+     * A single setting's value, pre-parsed into the types you're likely to ask for.
+     */
+    public static class Setting {
+        private final String value;
+        private final long revision;
+        private final boolean numeric;
+        private final long longValue;
+        private final boolean booleanValue;
+
+        Setting(String value, long revision) {
+            this.value = value;
+            this.revision = revision;
+            this.booleanValue = Boolean.parseBoolean(value);
+
+            long parsed = 0;
+            boolean isNumber = false;
+            try {
+                parsed = Long.parseLong(value.trim());
+                isNumber = true;
+            }
+            catch (NumberFormatException | NullPointerException e) {
+                // Not everything is a number, and that's fine.
+            }
+            this.longValue = parsed;
+            this.numeric = isNumber;
+        }
+
+        /** The raw value as it's stored in the bucket. */
+        public String value() {
+            return value;
+        }
+
+        /** The bucket revision this value was written at. */
+        public long revision() {
+            return revision;
+        }
+    }
+}
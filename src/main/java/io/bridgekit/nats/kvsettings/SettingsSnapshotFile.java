@@ -0,0 +1,141 @@
+package io.bridgekit.nats.kvsettings;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.kvsettings.SettingsRegistry.Setting;
+
+/**
+ * Reads/writes the SettingsRegistry's local snapshot. It's a tiny binary file rather than JSON so that loading
+ * it at startup is just a handful of reads with nothing to parse:
+ *
+ * <pre>
+ * int    magic ("KVS2")
+ * long   revision of the bucket we were caught up to
+ * long   when the bucket's stream was created (epoch millis), so we can tell if it's been recreated since
+ * int    number of settings
+ * then, for each setting:
+ *   UTF  key
+ *   long revision
+ *   int  value length, followed by that many bytes of UTF-8
+ * </pre>
+ *
+ * We write to a temp file and rename it over the old one, so a crash mid-save never leaves a half-written
+ * snapshot behind. A missing or unreadable file just means we start from scratch.
+ */
+class SettingsSnapshotFile {
+    private static final Logger logger = Logger.instance(SettingsSnapshotFile.class);
+    private static final int MAGIC = 0x4B565332; // "KVS2"
+
+    private final Map<String, Setting> settings;
+    private final long revision;
+    private final long streamCreated;
+
+    private SettingsSnapshotFile(Map<String, Setting> settings, long revision, long streamCreated) {
+        this.settings = settings;
+        this.revision = revision;
+        this.streamCreated = streamCreated;
+    }
+
+    /** The saved settings, keyed by setting name. The map is immutable. */
+    Map<String, Setting> settings() {
+        return settings;
+    }
+
+    /** The bucket revision we had caught up to when we saved the settings. */
+    long revision() {
+        return revision;
+    }
+
+    /** When the bucket's stream was created (epoch millis), as of when we saved the settings. */
+    long streamCreated() {
+        return streamCreated;
+    }
+
+    /**
+     * Loads the snapshot, or returns null if there isn't a usable one.
+     */
+    static SettingsSnapshotFile read(Path file) {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                logger.info("Ignoring settings snapshot in an unknown format: %s", file);
+                return null;
+            }
+
+            long revision = in.readLong();
+            long streamCreated = in.readLong();
+            int count = in.readInt();
+            var settings = new HashMap<String, Setting>(count * 2);
+            for (int i = 0; i < count; i++) {
+                var key = in.readUTF();
+                long settingRevision = in.readLong();
+                var value = new byte[in.readInt()];
+                in.readFully(value);
+                settings.put(key, new Setting(new String(value, UTF_8), settingRevision));
+            }
+            return new SettingsSnapshotFile(Map.copyOf(settings), revision, streamCreated);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+        catch (IOException | RuntimeException e) {
+            logger.error(e, "Ignoring unreadable settings snapshot: %s", file);
+            return null;
+        }
+    }
+
+    /**
+     * Saves the snapshot. Failing to save isn't the end of the world (we'll just start up a bit slower next
+     * time), so this logs the problem rather than throwing.
+     */
+    static void write(Path file, Map<String, Setting> settings, long revision, long streamCreated) {
+        Path temp = null;
+        try {
+            var dir = file.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            temp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeLong(revision);
+                out.writeLong(streamCreated);
+                out.writeInt(settings.size());
+                for (var entry : settings.entrySet()) {
+                    var setting = entry.getValue();
+                    var value = setting.value() == null ? new byte[0] : setting.value().getBytes(UTF_8);
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(setting.revision());
+                    out.writeInt(value.length);
+                    out.write(value);
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            logger.error(e, "Unable to save settings snapshot: %s", file);
+            deleteQuietly(temp);
+        }
+    }
+
+    private static void deleteQuietly(Path temp) {
+        try {
+            if (temp != null) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        catch (IOException e) {
+            // It's just a stray temp file.
+        }
+    }
+}
@@ -22,6 +22,8 @@ public class ApiGateway implements Closeable {
     private final Javalin javalin;
     private final String host;
     private final int port;
+    private RateLimiter rateLimiter;
+    private Function<Context, String> accountOf;
 
     public ApiGateway(String host, int port) {
         this.host = host;
@@ -47,6 +49,23 @@ public class ApiGateway implements Closeable {
         logger.info("Now running: %s", url());
     }
 
+    /**
+     * Limits how many requests each account can make, no matter which instance of the API they hit. Requests over
+     * the limit get a 429 (with a Retry-After header) without ever reaching the route's handler.
+     *
+     * @param rateLimiter Decides whether each request is allowed.
+     * @param accountOf   Determines which account a request counts against. This has to be something the caller
+     *                    can't simply choose, like the account from a verified token or the client's address;
+     *                    an unauthenticated header would let callers spread requests over made-up accounts
+     *                    or charge them to somebody else's.
+     * @return this
+     */
+    public ApiGateway rateLimit(RateLimiter rateLimiter, Function<Context, String> accountOf) {
+        this.rateLimiter = rateLimiter;
+        this.accountOf = accountOf;
+        return this;
+    }
+
     /**
      * Registers an HTTP GET route.
      *
@@ -119,6 +138,11 @@ public class ApiGateway implements Closeable {
         return ctx -> {
             try {
                 logger.info("%s %s", ctx.method(), ctx.path());
+                if (rateLimiter != null && !rateLimiter.tryAcquire(accountOf.apply(ctx))) {
+                    ctx.header("Retry-After", String.valueOf(rateLimiter.retryAfterSeconds()));
+                    respondError(ctx, 429, "Too many requests");
+                    return;
+                }
                 var result = handler.apply(ctx);
                 ctx.result(marshalJSON(result));
             }
@@ -142,5 +166,8 @@ public class ApiGateway implements Closeable {
     @Override
     public void close() {
         javalin.stop();
+        if (rateLimiter != null) {
+            rateLimiter.close();
+        }
     }
 }
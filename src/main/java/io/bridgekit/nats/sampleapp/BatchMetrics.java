@@ -0,0 +1,78 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for a batch route, so you can see whether your batch size/wait settings actually make sense.
+ * If the average batch size is tiny and the wait time is always maxed out, you're just adding latency. If
+ * batches are always full, you can probably afford a bigger batch.
+ */
+public class BatchMetrics {
+    private final String consumerGroup;
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder emptyFetches = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Math::max, 0);
+
+    BatchMetrics(String consumerGroup) {
+        this.consumerGroup = consumerGroup;
+    }
+
+    /**
+     * Records a single fetch from NATS.
+     *
+     * @param batchSize The number of messages we got back (possibly zero).
+     * @param waitNanos How long we waited for NATS to fill the batch.
+     */
+    void record(int batchSize, long waitNanos) {
+        this.waitNanos.add(waitNanos);
+        if (batchSize == 0) {
+            emptyFetches.increment();
+            return;
+        }
+        batches.increment();
+        messages.add(batchSize);
+        largestBatch.accumulate(batchSize);
+    }
+
+    /** The total number of non-empty batches handed to the route's handler. */
+    public long batches() {
+        return batches.sum();
+    }
+
+    /** The total number of messages handled across all batches. */
+    public long messages() {
+        return messages.sum();
+    }
+
+    /** The number of fetches that timed out without receiving any messages at all. */
+    public long emptyFetches() {
+        return emptyFetches.sum();
+    }
+
+    /** The largest batch handled so far. */
+    public long largestBatch() {
+        return largestBatch.get();
+    }
+
+    /** The average number of messages in a non-empty batch. */
+    public double averageBatchSize() {
+        long numBatches = batches();
+        return numBatches == 0 ? 0 : (double) messages() / numBatches;
+    }
+
+    /** The average time we spent waiting on each fetch, including empty ones. */
+    public double averageWaitMillis() {
+        long numFetches = batches() + emptyFetches();
+        return numFetches == 0 ? 0 : (double) TimeUnit.NANOSECONDS.toMicros(waitNanos.sum()) / 1000 / numFetches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("BatchMetrics[%s: batches=%d, messages=%d, avgSize=%.1f, maxSize=%d, avgWait=%.1fms, empty=%d]",
+            consumerGroup, batches(), messages(), averageBatchSize(), largestBatch(), averageWaitMillis(), emptyFetches());
+    }
+}
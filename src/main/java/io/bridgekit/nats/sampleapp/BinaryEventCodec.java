@@ -0,0 +1,383 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A compact, schema-driven binary EventCodec for our high-volume DTOs. Instead of repeating every field name
+ * and writing numbers as decimal text like JSON does, each message is just a schema id followed by the
+ * field values in the order the schema declares them:
+ *
+ * <ul>
+ *   <li>Strings: varint (UTF-8 length + 1; zero means null) followed by the UTF-8 bytes.</li>
+ *   <li>long/int/short/byte: zig-zag varints.</li>
+ *   <li>boolean: a single byte.</li>
+ * </ul>
+ *
+ * Schemas are registered explicitly with a numeric id rather than derived from reflection order so that the
+ * wire format doesn't shift if somebody reorders fields in the Java class. Once a schema id has been used in
+ * a stream, only ever append fields to the end of it. The decoder ignores trailing fields it doesn't know about
+ * and leaves fields missing from older messages at their defaults, so mixed versions can read each other.
+ * <p>
+ * You can decode a message into any type, not just the one it was written from. Fields are matched by name,
+ * so decoding an "order.cancelled" Order payload into a RefundRequest just picks up the "orderID" field.
+ */
+public class BinaryEventCodec implements EventCodec {
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private final Map<Integer, Schema> schemasByID = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Schema> schemasByType = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Map<Integer, Field[]>> projections = new ConcurrentHashMap<>();
+    private final ThreadLocal<ByteSink> buffers = ThreadLocal.withInitial(ByteSink::new);
+
+    /**
+     * Tells the codec how to encode the given DTO type.
+     *
+     * @param schemaID   A stable, unique id for this schema. This is written to every message, so never reuse one.
+     * @param type       The DTO class being described.
+     * @param fieldNames The public fields to encode, in wire order.
+     * @return this
+     */
+    public BinaryEventCodec register(int schemaID, Class<?> type, String... fieldNames) {
+        var schema = new Schema(schemaID, type, Arrays.stream(fieldNames).map(name -> field(type, name)).toArray(Field[]::new));
+        schemasByID.put(schemaID, schema);
+        schemasByType.put(type, schema);
+        return this;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/x-bridgekit-binary";
+    }
+
+    @Override
+    public boolean supports(Class<?> type) {
+        return schemasByType.containsKey(type);
+    }
+
+    @Override
+    public byte[] encode(Object payload) {
+        var schema = schemasByType.get(payload.getClass());
+        if (schema == null) {
+            throw new IllegalArgumentException("No binary schema registered for: " + payload.getClass().getName());
+        }
+
+        var sink = buffers.get();
+        try {
+            sink.writeVarint(schema.id);
+            for (var field : schema.fields) {
+                writeField(sink, field, payload);
+            }
+            return sink.toByteArray();
+        }
+        catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            if (sink.size > MAX_POOLED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+            else {
+                sink.size = 0;
+            }
+        }
+    }
+
+    /**
+     * Decodes the message into the requested type. Passing Object.class gives you an instance of whatever
+     * type the message was originally encoded from.
+     */
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        try {
+            var source = new ByteSource(data);
+            var schema = schemasByID.get(source.readVarint());
+            if (schema == null) {
+                throw new IllegalArgumentException("Unknown binary schema in message");
+            }
+
+            Class<?> targetType = type == Object.class ? schema.type : type;
+            Object target = schema.constructor(targetType).newInstance();
+            Field[] targetFields = projection(schema, targetType);
+
+            // Stop early if the message was written before newer fields were appended to the schema.
+            for (int i = 0; i < schema.fields.length && source.hasRemaining(); i++) {
+                Object value = readValue(source, schema.fields[i].getType());
+                if (targetFields[i] != null) {
+                    targetFields[i].set(target, value);
+                }
+            }
+            return type.cast(target);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unable to decode binary event into " + type.getName(), e);
+        }
+    }
+
+    /**
+     * For each field in the schema, figures out which field (if any) in the target type receives its value.
+     */
+    private Field[] projection(Schema schema, Class<?> targetType) {
+        return projections
+            .computeIfAbsent(targetType, t -> new ConcurrentHashMap<>())
+            .computeIfAbsent(schema.id, id -> Arrays.stream(schema.fields)
+                .map(field -> targetType == schema.type ? field : matchingField(targetType, field))
+                .toArray(Field[]::new));
+    }
+
+    private static Field matchingField(Class<?> type, Field source) {
+        try {
+            var target = type.getField(source.getName());
+            if (target.getType() != source.getType() || Modifier.isStatic(target.getModifiers())) {
+                return null;
+            }
+            target.setAccessible(true); // public field, but the class itself might be private (e.g. a nested DTO)
+            return target;
+        }
+        catch (NoSuchFieldException e) {
+            return null;
+        }
+    }
+
+    private static Field field(Class<?> type, String name) {
+        try {
+            var field = type.getField(name);
+            if (Modifier.isStatic(field.getModifiers())) {
+                throw new IllegalArgumentException("Can't encode static field: " + name);
+            }
+            field.setAccessible(true);
+            return field;
+        }
+        catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("No public field '" + name + "' on " + type.getName(), e);
+        }
+    }
+
+    private static void writeField(ByteSink sink, Field field, Object payload) throws IllegalAccessException {
+        var fieldType = field.getType();
+        if (fieldType == String.class) {
+            sink.writeString((String) field.get(payload));
+        }
+        else if (fieldType == long.class) {
+            sink.writeZigZag(field.getLong(payload));
+        }
+        else if (fieldType == int.class || fieldType == short.class || fieldType == byte.class) {
+            sink.writeZigZag(field.getInt(payload));
+        }
+        else if (fieldType == boolean.class) {
+            sink.write(field.getBoolean(payload) ? 1 : 0);
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported binary field type: " + field);
+        }
+    }
+
+    private static Object readValue(ByteSource source, Class<?> fieldType) {
+        if (fieldType == String.class) {
+            return source.readString();
+        }
+        if (fieldType == long.class) {
+            return source.readZigZag();
+        }
+        if (fieldType == int.class) {
+            return (int) source.readZigZag();
+        }
+        if (fieldType == short.class) {
+            return (short) source.readZigZag();
+        }
+        if (fieldType == byte.class) {
+            return (byte) source.readZigZag();
+        }
+        if (fieldType == boolean.class) {
+            return source.read() != 0;
+        }
+        throw new IllegalArgumentException("Unsupported binary field type: " + fieldType);
+    }
+
+    /**
+     * The wire layout for a single DTO type.
+     */
+    private static class Schema {
+        private final int id;
+        private final Class<?> type;
+        private final Field[] fields;
+        private final Map<Class<?>, Constructor<?>> constructors = new ConcurrentHashMap<>();
+
+        private Schema(int id, Class<?> type, Field[] fields) {
+            this.id = id;
+            this.type = type;
+            this.fields = fields;
+        }
+
+        private Constructor<?> constructor(Class<?> targetType) {
+            return constructors.computeIfAbsent(targetType, t -> {
+                try {
+                    var constructor = t.getDeclaredConstructor();
+                    constructor.setAccessible(true);
+                    return constructor;
+                }
+                catch (NoSuchMethodException e) {
+                    throw new IllegalArgumentException("Event types need a no-arg constructor: " + t.getName(), e);
+                }
+            });
+        }
+    }
+
+    /**
+     * A bare-bones growable byte array. It's reused per thread, so the only allocation per encode is the
+     * exact-size copy we hand to NATS.
+     */
+    private static class ByteSink {
+        private byte[] bytes = new byte[256];
+        private int size;
+
+        private void write(int b) {
+            if (size == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeZigZag(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            // Encode by hand so we don't allocate a throwaway byte[] via getBytes() for every string field.
+            int length = utf8Length(value);
+            writeVarint(length + 1L);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                    write(0xF0 | (codePoint >> 18));
+                    write(0x80 | ((codePoint >> 12) & 0x3F));
+                    write(0x80 | ((codePoint >> 6) & 0x3F));
+                    write(0x80 | (codePoint & 0x3F));
+                    continue;
+                }
+
+                // Lone surrogates get replaced by '?', the same thing String.getBytes(UTF_8) does.
+                if (Character.isSurrogate(c)) {
+                    c = '?';
+                }
+                if (c < 0x80) {
+                    write(c);
+                }
+                else if (c < 0x800) {
+                    write(0xC0 | (c >> 6));
+                    write(0x80 | (c & 0x3F));
+                }
+                else {
+                    write(0xE0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3F));
+                    write(0x80 | (c & 0x3F));
+                }
+            }
+        }
+
+        private static int utf8Length(String value) {
+            int length = 0;
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                }
+                else if (c < 0x800) {
+                    length += 2;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                }
+                else {
+                    length += Character.isSurrogate(c) ? 1 : 3;
+                }
+            }
+            return length;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+    }
+
+    /**
+     * Reads values back out of a message's byte array in the same order ByteSink wrote them.
+     */
+    private static class ByteSource {
+        private final byte[] bytes;
+        private int position;
+
+        private ByteSource(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private boolean hasRemaining() {
+            return position < bytes.length;
+        }
+
+        private int read() {
+            if (position >= bytes.length) {
+                throw new IllegalArgumentException("Truncated binary event");
+            }
+            return bytes[position++] & 0xFF;
+        }
+
+        private int readVarint() {
+            return (int) readVarLong();
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in binary event");
+        }
+
+        private long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private String readString() {
+            long length = readVarLong();
+            if (length == 0) {
+                return null;
+            }
+            // Check the length as a long before narrowing it. A corrupt varint can claim billions of bytes (or go
+            // negative), which would otherwise wrap around and blow up as some other exception further down.
+            if (length < 0 || length - 1 > bytes.length - position) {
+                throw new IllegalArgumentException("Invalid string length in binary event: " + (length - 1));
+            }
+            int numBytes = (int) (length - 1);
+            var value = new String(bytes, position, numBytes, UTF_8);
+            position += numBytes;
+            return value;
+        }
+    }
+}
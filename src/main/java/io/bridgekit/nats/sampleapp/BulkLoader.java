@@ -0,0 +1,141 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.SplittableRandom;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static io.bridgekit.nats.Utils.firstArgOptional;
+import static io.bridgekit.nats.Utils.parseInt;
+import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_CANCELLED;
+import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_FULFILLED;
+import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_PLACED;
+import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_SHIPPED;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.PROCESSOR_APPLE_PAY;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.PROCESSOR_STRIPE;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.STATUS_AUTHORIZED;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.STATUS_CHARGEBACK;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.STATUS_CHARGED;
+import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.STATUS_REFUNDED;
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.sampleapp.orders.OrderRepo;
+import io.bridgekit.nats.sampleapp.orders.OrderService.Order;
+import io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction;
+import io.bridgekit.nats.sampleapp.payments.TransactionRepo;
+
+/**
+ * Three fake orders are fine for clicking around the demo, but they won't tell you much about how search() or the
+ * event routes behave with production-sized data. This fills the order/transaction buckets with as many fake
+ * (but realistic-looking) records as you like. Like real data, it's lopsided: a few popular items show up in most
+ * orders, most orders have long since been fulfilled, and most people buy just one of something.
+ * <p>
+ * Records are generated on the fly and written with pipelined async publishes, so memory stays flat whether you
+ * load a thousand records or a few million.
+ *
+ * <pre>
+ * # Usage
+ * make demo-app-load LOAD_COUNT=1000000
+ * </pre>
+ */
+public class BulkLoader {
+    private static final Logger logger = Logger.instance(BulkLoader.class);
+    private static final int DEFAULT_COUNT = 100_000;
+    private static final int CATALOG_SIZE = 500;
+    private static final int MAX_IN_FLIGHT = 4096;
+
+    private static final String[] ADJECTIVES = { "Artisanal", "Haunted", "Inflatable", "Left-handed", "Organic", "Refurbished", "Self-aware", "Waterproof" };
+    private static final String[] NOUNS = { "Anvil", "Banjo", "Cactus", "Doorknob", "Hammock", "Lava Lamp", "Toaster", "Unicycle" };
+
+    public static void main(String[] args) {
+        int count = parseInt(firstArgOptional(args));
+        count = count > 0 ? count : DEFAULT_COUNT;
+
+        try (var orders = OrderRepo.newStore(); var transactions = TransactionRepo.newStore()) {
+            load("orders", orders, count, BulkLoader::fakeOrder, order -> order.orderID);
+            load("transactions", transactions, count, BulkLoader::fakeTransaction, t -> t.transactionID);
+        }
+
+        logger.info("Bye, bye!");
+        System.exit(0); // the shared NATS connection's threads would otherwise keep us alive
+    }
+
+    private static <T> void load(String label, KeyValueStore<T> store, int count, Function<Long, T> generator, Function<T, String> idOf) {
+        logger.info("Loading %d fake %s...", count, label);
+        long start = System.nanoTime();
+
+        Stream<T> records = LongStream.range(0, count).mapToObj(generator::apply);
+        long written = store.putAll(records, idOf, MAX_IN_FLIGHT);
+
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        logger.info("Loaded %d %s in %.1fs (%.0f records/sec)", written, label, seconds, written / seconds);
+    }
+
+    /**
+     * Generates the i-th fake order. It's seeded by i, so the same i always gives you the same order; that's how
+     * fakeTransaction() knows what the order it belongs to looks like without us holding onto every order.
+     */
+    private static Order fakeOrder(long i) {
+        var random = new SplittableRandom(i);
+        int item = skewed(random, CATALOG_SIZE, 3);
+
+        var order = new Order();
+        order.orderID = orderID(i);
+        order.itemID = String.format("ITEM-%03d", item);
+        order.itemName = ADJECTIVES[item % ADJECTIVES.length] + " " + NOUNS[(item / ADJECTIVES.length) % NOUNS.length];
+        order.quantity = 1 + skewed(random, 10, 4);
+        order.price = 99 + (item * 7919L) % 20_000;
+        order.total = order.price * order.quantity;
+        order.status = orderStatus(random.nextInt(100));
+        order.trackingNumber = STATUS_PLACED.equals(order.status) ? null : Long.toString(random.nextLong(1L << 40), 36).toUpperCase();
+        return order;
+    }
+
+    /**
+     * Generates the transaction for the i-th fake order, with a status that makes sense given the order's status.
+     */
+    private static Transaction fakeTransaction(long i) {
+        var order = fakeOrder(i);
+        var random = new SplittableRandom(~i);
+
+        var transaction = new Transaction();
+        transaction.transactionID = String.format("T%08d", i);
+        transaction.orderID = order.orderID;
+        transaction.total = order.total;
+        transaction.processorID = random.nextInt(100) < 70 ? PROCESSOR_STRIPE : PROCESSOR_APPLE_PAY;
+        transaction.processorToken = Long.toString(random.nextLong(1L << 48), 36);
+        transaction.status = switch (order.status) {
+            case STATUS_PLACED -> STATUS_AUTHORIZED;
+            case STATUS_CANCELLED -> STATUS_REFUNDED;
+            default -> random.nextInt(100) == 0 ? STATUS_CHARGEBACK : STATUS_CHARGED;
+        };
+        return transaction;
+    }
+
+    private static String orderID(long i) {
+        return String.format("L%08d", i);
+    }
+
+    /**
+     * Most orders were placed a while ago, so they've long since been fulfilled.
+     */
+    private static String orderStatus(int percentile) {
+        if (percentile < 60) {
+            return STATUS_FULFILLED;
+        }
+        if (percentile < 80) {
+            return STATUS_SHIPPED;
+        }
+        if (percentile < 95) {
+            return STATUS_PLACED;
+        }
+        return STATUS_CANCELLED;
+    }
+
+    /**
+     * Picks a number in [0, bound) where small numbers are much more likely than big ones; the higher the
+     * exponent, the more lopsided it gets. With an exponent of 3, the top 10% of items get almost half the orders.
+     */
+    private static int skewed(SplittableRandom random, int bound, int exponent) {
+        return (int) (Math.pow(random.nextDouble(), exponent) * bound);
+    }
+}
@@ -0,0 +1,77 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals for KeyValueStore.compute(), so you can tell how often instances are fighting over the same
+ * records. A handful of conflicts is normal when several event workers touch the same order; lots of them (or
+ * any exhausted computes) means a record is hot enough that you should rethink how it's partitioned.
+ */
+public class ComputeMetrics {
+    private final String bucketName;
+    private final LongAdder computes = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAccumulator mostAttempts = new LongAccumulator(Math::max, 0);
+
+    ComputeMetrics(String bucketName) {
+        this.bucketName = bucketName;
+    }
+
+    /**
+     * Records a compute() that finished, one way or the other.
+     *
+     * @param attempts How many times we had to read/modify/write before it stuck (or we gave up).
+     * @param wrote    Whether we actually wrote anything (the update function can decide not to).
+     */
+    void record(int attempts, boolean wrote) {
+        computes.increment();
+        conflicts.add(attempts - 1);
+        mostAttempts.accumulate(attempts);
+        if (wrote) {
+            writes.increment();
+        }
+    }
+
+    /**
+     * Records a compute() that lost the race on every attempt and gave up.
+     */
+    void recordExhausted(int attempts) {
+        exhausted.increment();
+        conflicts.add(attempts);
+        mostAttempts.accumulate(attempts);
+    }
+
+    /** The total number of compute() calls that completed. */
+    public long computes() {
+        return computes.sum();
+    }
+
+    /** The number of completed computes that actually wrote a new revision. */
+    public long writes() {
+        return writes.sum();
+    }
+
+    /** The number of times a write was rejected because someone else updated the record first. */
+    public long conflicts() {
+        return conflicts.sum();
+    }
+
+    /** The number of computes that ran out of retries. */
+    public long exhausted() {
+        return exhausted.sum();
+    }
+
+    /** The most attempts any single compute() needed. */
+    public long mostAttempts() {
+        return mostAttempts.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ComputeMetrics[%s: computes=%d, writes=%d, conflicts=%d, exhausted=%d, maxAttempts=%d]",
+            bucketName, computes(), writes(), conflicts(), exhausted(), mostAttempts());
+    }
+}
@@ -0,0 +1,71 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Decides which shard owns a key. Each shard gets a bunch of "virtual node" positions on a ring of 64-bit
+ * hashes, and a key belongs to whichever shard has the next position clockwise from the key's own hash.
+ * <p>
+ * The nice part (and the reason we don't just do hash % shards) is that a shard's positions never depend on
+ * how many shards there are. Going from 4 shards to 5 only adds shard 4's positions to the ring, so the only
+ * keys that move are the ones shard 4 takes over; roughly 1/5th of them rather than nearly all of them.
+ */
+public class ConsistentHash {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final int shards;
+    private final NavigableMap<Long, Integer> ring = new TreeMap<>();
+
+    /**
+     * @param shards How many shards to spread the keys over (numbered 0 to shards-1).
+     */
+    public ConsistentHash(int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("Need at least one shard: " + shards);
+        }
+
+        this.shards = shards;
+        for (int shard = 0; shard < shards; shard++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(hash("shard-" + shard + "#" + node), shard);
+            }
+        }
+    }
+
+    /**
+     * The number of shards keys are spread over.
+     */
+    public int shards() {
+        return shards;
+    }
+
+    /**
+     * Returns the index of the shard that owns this key.
+     */
+    public int shardFor(String key) {
+        if (shards == 1) {
+            return 0;
+        }
+        var owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64-bit FNV-1a with a final mix so that similar keys ("order-1", "order-2") land all over the ring rather
+     * than bunched up next to each other.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
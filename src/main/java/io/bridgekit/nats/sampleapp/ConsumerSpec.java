@@ -0,0 +1,111 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+import java.util.List;
+
+import io.nats.client.api.AckPolicy;
+import io.nats.client.api.ConsumerConfiguration;
+import io.nats.client.api.DeliverPolicy;
+
+/**
+ * A declarative description of a durable JetStream consumer; the consumer-side counterpart to StreamSpec.
+ * The EventGateway builds one of these for every route, and the JetStreamProvisioner only bothers the server
+ * when it doesn't already match.
+ */
+public class ConsumerSpec {
+    private final String durable;
+    private List<String> filterSubjects = List.of();
+    private DeliverPolicy deliverPolicy = DeliverPolicy.New;
+    private AckPolicy ackPolicy = AckPolicy.Explicit;
+    private Duration inactiveThreshold;
+    private long maxDeliver = -1;
+    private Long maxAckPending;
+    private Duration ackWait;
+
+    private ConsumerSpec(String durable) {
+        this.durable = durable;
+    }
+
+    /**
+     * Starts a spec for the durable consumer (i.e. consumer group) with this name. By default, it only receives
+     * new messages and expects an explicit ack for each one.
+     */
+    public static ConsumerSpec durable(String durable) {
+        return new ConsumerSpec(durable);
+    }
+
+    /** The name of the durable consumer. */
+    public String name() {
+        return durable;
+    }
+
+    /** The subjects (wildcards allowed) this consumer receives. These must not overlap. */
+    public ConsumerSpec filterSubjects(List<String> filterSubjects) {
+        this.filterSubjects = filterSubjects;
+        return this;
+    }
+
+    /** Where in the stream a brand-new consumer starts. */
+    public ConsumerSpec deliverPolicy(DeliverPolicy deliverPolicy) {
+        this.deliverPolicy = deliverPolicy;
+        return this;
+    }
+
+    /** Whether each message needs its own ack or one ack covers everything before it. */
+    public ConsumerSpec ackPolicy(AckPolicy ackPolicy) {
+        this.ackPolicy = ackPolicy;
+        return this;
+    }
+
+    /** How long the consumer can sit unused before the server deletes it. */
+    public ConsumerSpec inactiveThreshold(Duration inactiveThreshold) {
+        this.inactiveThreshold = inactiveThreshold;
+        return this;
+    }
+
+    /** The most times the server will deliver a message before giving up on it (-1 for unlimited). */
+    public ConsumerSpec maxDeliver(long maxDeliver) {
+        this.maxDeliver = maxDeliver;
+        return this;
+    }
+
+    /** The most messages that can be delivered but not yet acked across all instances. */
+    public ConsumerSpec maxAckPending(long maxAckPending) {
+        this.maxAckPending = maxAckPending;
+        return this;
+    }
+
+    /** How long the server waits for an ack before redelivering. */
+    public ConsumerSpec ackWait(Duration ackWait) {
+        this.ackWait = ackWait;
+        return this;
+    }
+
+    /**
+     * Builds the jnats configuration described by this spec.
+     */
+    public ConsumerConfiguration toConfiguration() {
+        var builder = ConsumerConfiguration.builder()
+            .durable(durable)
+            .deliverPolicy(deliverPolicy)
+            .ackPolicy(ackPolicy)
+            .maxDeliver(maxDeliver);
+
+        if (filterSubjects.size() == 1) {
+            builder.filterSubject(filterSubjects.get(0));
+        }
+        else if (!filterSubjects.isEmpty()) {
+            builder.filterSubjects(filterSubjects);
+        }
+        if (inactiveThreshold != null) {
+            builder.inactiveThreshold(inactiveThreshold);
+        }
+        if (maxAckPending != null) {
+            builder.maxAckPending(maxAckPending);
+        }
+        if (ackWait != null) {
+            builder.ackWait(ackWait);
+        }
+        return builder.build();
+    }
+}
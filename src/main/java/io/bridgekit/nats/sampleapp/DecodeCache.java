@@ -0,0 +1,97 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static io.bridgekit.nats.Utils.unmarshalJSON;
+
+/**
+ * Remembers the decoded form of the latest revision we've seen for each key, so reading an entry that hasn't
+ * changed since last time skips the Gson parse (and the String we'd otherwise build from the bytes). The store
+ * routes every decode through here: get(), compute(), scans, and the near cache/query index watchers, which all
+ * tend to see the same revisions over and over.
+ * <p>
+ * Unlike the NearCache, this never saves a trip to NATS; it just makes the trip cheaper once the bytes are back.
+ * Callers always get their own copy, so they're free to modify it.
+ */
+public class DecodeCache<T> {
+    private final Class<T> entityType;
+    private final int maxEntries;
+    private final RecordCopier<T> copier;
+    private final Map<String, Decoded<T>> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    DecodeCache(Class<T> entityType, int maxEntries) {
+        this.entityType = entityType;
+        this.maxEntries = maxEntries;
+        this.copier = new RecordCopier<>(entityType);
+    }
+
+    /**
+     * Returns the decoded record for this key/revision, only parsing the JSON if we haven't seen this exact
+     * revision before.
+     */
+    T decode(String key, long revision, byte[] json) {
+        var cached = entries.get(key);
+        if (cached != null && cached.revision == revision) {
+            hits.increment();
+            return copier.copy(cached.value);
+        }
+
+        misses.increment();
+        var value = unmarshalJSON(json, entityType);
+        if (cached == null && entries.size() >= maxEntries) {
+            evictSome();
+        }
+
+        var copy = copier.copy(value);
+        entries.merge(key, new Decoded<>(revision, copy), (existing, update) -> existing.revision > update.revision ? existing : update);
+        return value;
+    }
+
+    /**
+     * Makes room by dropping an arbitrary eighth of the entries. This doesn't need to be smart; anything evicted
+     * just costs one more parse the next time it's read.
+     */
+    private void evictSome() {
+        int toEvict = Math.max(1, maxEntries / 8);
+        var keys = entries.keySet().iterator();
+        while (toEvict-- > 0 && keys.hasNext()) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /** The number of decodes that were answered from the cache. */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** The number of decodes that actually had to parse the JSON. */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** The number of decoded records currently cached. */
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("DecodeCache[%s: size:%d/%d, hits:%d, misses:%d]",
+            entityType.getSimpleName(), size(), maxEntries, hits(), misses());
+    }
+
+    private static class Decoded<T> {
+        private final long revision;
+        private final T value;
+
+        private Decoded(long revision, T value) {
+            this.revision = revision;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.bridgekit.nats.sampleapp;
+
+/**
+ * Converts event payloads to/from the raw bytes we hand to NATS. The EventGateway runs every published
+ * event and every consumed message through one of these, so implementations should avoid needless
+ * intermediate copies (e.g. building a String just to turn it into bytes again).
+ */
+public interface EventCodec {
+    /**
+     * The MIME type describing the bytes this codec produces (e.g. "application/json").
+     */
+    String contentType();
+
+    /**
+     * Returns true if this codec knows how to encode payloads of the given type. Publishers use this to pick
+     * the most compact codec available for each event.
+     */
+    default boolean supports(Class<?> type) {
+        return true;
+    }
+
+    /**
+     * Serializes the payload into a byte array that is safe to hand off to NATS. The returned array must
+     * be exclusively owned by the caller since async publishes may hang onto it for a while.
+     */
+    byte[] encode(Object payload);
+
+    /**
+     * Parses the raw message data and overlays its values onto a new instance of the given type.
+     */
+    <T> T decode(byte[] data, Class<T> type);
+}
@@ -2,24 +2,45 @@ package io.bridgekit.nats.sampleapp;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
-import static io.bridgekit.nats.Utils.marshalJSON;
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.Duration.ofDays;
+import static io.bridgekit.nats.Utils.asString;
+import static io.bridgekit.nats.Utils.marshalJSON;
 import io.bridgekit.nats.Logger;
 import io.bridgekit.nats.Utils;
+import io.bridgekit.nats.sampleapp.NatsConnections.TrafficClass;
+import io.nats.client.ConsumeOptions;
+import io.nats.client.ConsumerContext;
 import io.nats.client.Connection;
+import io.nats.client.FetchConsumeOptions;
 import io.nats.client.JetStream;
 import io.nats.client.JetStreamApiException;
 import io.nats.client.JetStreamManagement;
 import io.nats.client.Message;
+import io.nats.client.MessageConsumer;
 import io.nats.client.MessageHandler;
-import io.nats.client.Nats;
-import io.nats.client.api.ConsumerConfiguration;
-import io.nats.client.api.DeliverPolicy;
-import io.nats.client.api.StorageType;
-import io.nats.client.api.StreamConfiguration;
+import io.nats.client.api.AckPolicy;
+import io.nats.client.api.PublishAck;
+import io.nats.client.impl.Headers;
 
 /**
  * EventBroker manages the NATS connection used to facilitate our event-streaming functionality. It
@@ -27,17 +48,66 @@ import io.nats.client.api.StreamConfiguration;
  * when certain events are fired.
  */
 public class EventGateway implements Closeable {
+    /**
+     * The NATS header that tells consumers which EventCodec wrote the message. Messages without it are JSON.
+     */
+    public static final String CONTENT_TYPE_HEADER = "Content-Type";
+
+    /**
+     * The NATS header JetStream uses to detect duplicate publishes within the stream's duplicate window.
+     */
+    public static final String MSG_ID_HEADER = "Nats-Msg-Id";
+
+    /**
+     * The stream where messages that failed every retry end up, so they're not lost forever.
+     */
+    public static final String DEAD_LETTER_STREAM = "EVENT_GATEWAY_DEAD_LETTERS";
+
+    /**
+     * The JetStream API error code for a consumer the server refused to create/update.
+     */
+    private static final int CONSUMER_CREATE_ERROR = 10012;
+
     private final Logger logger;
+    private final NatsConnections.Lease connection;
     private final Connection nats;
     private final JetStream jetStream;
     private final JetStreamManagement jetStreamManagement;
+    private final JetStreamProvisioner provisioner;
+    private final ExecutorService provisioning;
+    private final List<CompletableFuture<?>> pendingSetup = new CopyOnWriteArrayList<>();
+    private final EventCodec defaultCodec;
+    private final List<EventCodec> codecs;
+    private final List<AsyncPublisher> asyncPublishers = new CopyOnWriteArrayList<>();
+    private final List<PartitionedExecutor> routeExecutors = new CopyOnWriteArrayList<>();
+    private final Map<String, BatchMetrics> batchMetrics = new ConcurrentHashMap<>();
+    private final List<EventStream> routedStreams = new CopyOnWriteArrayList<>();
+    private final Map<Class<?>, Function<Object, String>> entityKeys = new ConcurrentHashMap<>();
+    private final IdempotencyFilter idempotencyFilter = new IdempotencyFilter(Duration.ofMinutes(2), 100_000);
+    private final ScheduledExecutorService heartbeats;
+    private volatile boolean deadLetterStreamReady;
+    private volatile boolean closed;
 
     public EventGateway(String host, int port) {
         try {
             this.logger = Logger.instance(getClass());
-            this.nats = Nats.connect(String.format("nats://%s:%d", host, port));
+            this.connection = NatsConnections.shared().acquire(String.format("nats://%s:%d", host, port), TrafficClass.EVENTS);
+            this.nats = connection.connection();
             this.jetStreamManagement = nats.jetStreamManagement();
             this.jetStream = nats.jetStream();
+            this.provisioner = new JetStreamProvisioner(jetStreamManagement);
+            this.provisioning = Executors.newCachedThreadPool(runnable -> {
+                var thread = new Thread(runnable, "event-gateway-provisioning");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.defaultCodec = new JsonEventCodec();
+            this.codecs = new CopyOnWriteArrayList<>(List.of(defaultCodec));
+            this.heartbeats = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "event-gateway-heartbeats");
+                thread.setDaemon(true);
+                return thread;
+            });
         }
         catch (Exception e) {
             throw new RuntimeException(e);
@@ -52,9 +122,114 @@ public class EventGateway implements Closeable {
     }
 
     /**
-     * Okay... this doesn't really "start" anything. I just wanted parity with the ApiGateway.
+     * Registers an additional codec. Consumers will always be able to decode messages written with it, and
+     * publishers will prefer it (over JSON and anything registered earlier) for payload types it supports.
+     *
+     * @return this
+     */
+    public EventGateway codec(EventCodec codec) {
+        codecs.add(0, codec);
+        return this;
+    }
+
+    /**
+     * Tells the gateway how to identify the entity behind payloads of this type (e.g. an Order's orderID). Events
+     * carrying one of these payloads are published with a deterministic "Nats-Msg-Id" of "{eventName}:{entityKey}",
+     * so if a retry publishes the same transition for the same entity twice, JetStream stores it only once.
+     *
+     * @return this
+     */
+    public <T> EventGateway messageIDs(Class<T> type, Function<T, String> entityKey) {
+        entityKeys.put(type, payload -> entityKey.apply(type.cast(payload)));
+        return this;
+    }
+
+    /**
+     * The number of duplicate deliveries we've dropped before they reached a handler.
+     */
+    public long duplicatesRejected() {
+        return idempotencyFilter.duplicates();
+    }
+
+    /**
+     * Decodes the message's payload using whichever codec its Content-Type header says wrote it.
+     */
+    public <T> T decode(Message msg, Class<T> type) {
+        return codecFor(msg).decode(msg.getData(), type);
+    }
+
+    /**
+     * Returns the message's payload as JSON text regardless of the codec it was published with. JSON messages
+     * are returned as-is; anything else is decoded and re-formatted as JSON.
+     */
+    public String decodeAsJSON(Message msg) {
+        var codec = codecFor(msg);
+        return codec == defaultCodec
+            ? asString(msg.getData())
+            : marshalJSON(codec.decode(msg.getData(), Object.class));
+    }
+
+    /**
+     * Looks up the codec for a consumed message based on its Content-Type header, assuming JSON if there isn't one.
+     */
+    private EventCodec codecFor(Message msg) {
+        var contentType = msg.hasHeaders() ? msg.getHeaders().getFirst(CONTENT_TYPE_HEADER) : null;
+        if (contentType == null) {
+            return defaultCodec;
+        }
+        for (var codec : codecs) {
+            if (codec.contentType().equals(contentType)) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("No codec registered for content type: " + contentType);
+    }
+
+    /**
+     * Encodes the payload using the first (most preferred) codec that supports its type.
+     */
+    private EncodedEvent encode(String eventName, Object payload) {
+        var payloadType = payload == null ? Object.class : payload.getClass();
+        var messageID = messageID(eventName, payloadType, payload);
+        for (var codec : codecs) {
+            if (codec.supports(payloadType)) {
+                return new EncodedEvent(codec, codec.encode(payload), messageID);
+            }
+        }
+        return new EncodedEvent(defaultCodec, defaultCodec.encode(payload), messageID);
+    }
+
+    /**
+     * Builds the deterministic message id for this event, or null if we don't know how to identify the payload.
+     */
+    private String messageID(String eventName, Class<?> payloadType, Object payload) {
+        var entityKey = entityKeys.get(payloadType);
+        var key = entityKey == null ? null : entityKey.apply(payload);
+        return key == null ? null : eventName + ":" + key;
+    }
+
+    /**
+     * Returns the running metrics for every batch route registered via EventStream.onBatch(), keyed by consumer group.
+     */
+    public Map<String, BatchMetrics> batchMetrics() {
+        return Collections.unmodifiableMap(batchMetrics);
+    }
+
+    /**
+     * Starts the shared consumers for any streams running in router mode; those have to wait until all of their
+     * routes are registered so we know which subjects to filter on. Then it waits for all of the streams and
+     * consumers (which are provisioned in the background, in parallel) to be ready. If any of them failed to
+     * set up, this is where you find out.
      */
     public void start() {
+        routedStreams.forEach(stream -> stream.afterReady(stream::startRouter));
+        try {
+            CompletableFuture.allOf(pendingSetup.toArray(CompletableFuture[]::new)).join();
+            pendingSetup.clear();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : new RuntimeException(e.getCause());
+        }
         logger.info("Now running: %s", url());
     }
 
@@ -65,7 +240,8 @@ public class EventGateway implements Closeable {
         return (eventName, payload) -> {
             try {
                 logger.info("Publishing event: %s", eventName);
-                jetStream.publish(eventName, marshalJSON(payload).getBytes(UTF_8));
+                var event = encode(eventName, payload);
+                jetStream.publish(eventName, event.headers(), event.data);
             }
             catch (Exception e) {
                 throw new RuntimeException(e);
@@ -73,6 +249,24 @@ public class EventGateway implements Closeable {
         };
     }
 
+    /**
+     * Returns a Publisher that uses JetStream's async publishing so services don't have to sit and wait
+     * for a PubAck round trip on every event. You decide per event name whether a publish should block
+     * until it's acked (SYNC), return as soon as it's on the wire (ASYNC), or skip the ack entirely
+     * (FIRE_AND_FORGET). Anything you don't explicitly configure is published as SYNC.
+     *
+     * @param maxInFlight The most un-acked publishes we'll allow before publish() blocks to let acks catch up.
+     *                    Must be at least 1.
+     */
+    public AsyncPublisher asyncPublisher(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
+        var publisher = new AsyncPublisher(maxInFlight);
+        asyncPublishers.add(publisher);
+        return publisher;
+    }
+
     /**
      * Sets up the NATS event stream and provides routing for matching events.
      *
@@ -81,18 +275,34 @@ public class EventGateway implements Closeable {
      * @return A new stream/router you can use to set up event-based service routes.
      */
     public EventStream stream(String streamName, String subjectPattern) {
-        try {
-            logger.info("Setting up event consumer: %s -> %s", streamName, subjectPattern);
-            return new EventStream(streamName, subjectPattern);
-        }
-        catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        return stream(StreamSpec.named(streamName).subjects(subjectPattern).maxMessages(10));
+    }
+
+    /**
+     * Sets up the NATS event stream described by the spec and provides routing for matching events. The stream
+     * is created/updated in the background, so you can go ahead and register routes right away; they'll be
+     * created as soon as the stream is ready. Call start() to wait for everything to finish.
+     *
+     * @param spec What the stream should look like on the server.
+     * @return A new stream/router you can use to set up event-based service routes.
+     */
+    public EventStream stream(StreamSpec spec) {
+        logger.info("Setting up event consumer: %s", spec.name());
+        return new EventStream(spec);
     }
 
     @Override
     public void close() throws IOException {
-        Utils.closeQuietly(nats);
+        closed = true;
+
+        // Let handlers that are already running on route thread pools finish up (and ack) first.
+        routeExecutors.forEach(PartitionedExecutor::close);
+        heartbeats.shutdownNow();
+        provisioning.shutdownNow();
+
+        // Give any pipelined publishes a chance to get their acks before we yank the connection.
+        asyncPublishers.forEach(publisher -> publisher.flush(Duration.ofSeconds(5)));
+        Utils.closeQuietly(connection);
     }
 
     /**
@@ -100,29 +310,64 @@ public class EventGateway implements Closeable {
      */
     public class EventStream {
         private final String streamName;
+        private final CompletableFuture<Void> ready;
+        private Router router;
 
-        private EventStream(String streamName, String subjectPattern) throws Exception {
-            this.streamName = streamName;
-
-            // Yep, copy/pasted from the StreamPublisher demo.
-            var streamConfig = StreamConfiguration.builder()
-                .name(streamName)
-                .subjects(subjectPattern)
-                .storageType(StorageType.File)
-                .maxMessages(10)
-                .build();
+        private EventStream(StreamSpec spec) {
+            this.streamName = spec.name();
+            this.ready = CompletableFuture.runAsync(() -> {
+                try {
+                    provisioner.provision(spec);
+                }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, provisioning);
+            pendingSetup.add(ready);
+        }
 
-            // Admittedly, this kind of sucks. The Go client has a convenient "createOrUpdateStream()" method
-            // that does this logic for you. Maybe they'll add it to the Java client, eventually.
-            try {
-                jetStreamManagement.updateStream(streamConfig);
-            }
-            catch (JetStreamApiException e) {
-                if (e.getErrorCode() != 404) {
-                    throw e;
+        /**
+         * Runs some consumer setup in the background once the stream itself exists. Since every consumer only
+         * depends on its stream, all of them get provisioned in parallel rather than one round trip at a time.
+         */
+        private void afterReady(SetupTask task) {
+            pendingSetup.add(ready.thenRunAsync(() -> {
+                try {
+                    task.run();
                 }
-                jetStreamManagement.addStream(streamConfig);
-            }
+                catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }, provisioning));
+        }
+
+        /**
+         * Registers an event-based route/consumer whose handler receives the already-decoded event payload
+         * rather than the raw message. The payload is decoded straight from the message's bytes using the
+         * codec named in its Content-Type header.
+         *
+         * @param eventName     The event to listen for. Can include wildcards (e.g. "user.>" or "*.created.>")
+         * @param consumerGroup If running multiple instances only 1 in this group will get the event.
+         * @param payloadType   The type to decode the event payload into.
+         * @param handler       The unit of work to execute when the gateway receives a matching event.
+         * @return this
+         */
+        public <T> EventStream on(String eventName, String consumerGroup, Class<T> payloadType, Consumer<T> handler) {
+            return on(eventName, consumerGroup, payloadType, null, handler);
+        }
+
+        /**
+         * Registers a typed event-based route/consumer that dispatches messages according to the given options.
+         *
+         * @param eventName     The event to listen for. Can include wildcards (e.g. "user.>" or "*.created.>")
+         * @param consumerGroup If running multiple instances only 1 in this group will get the event.
+         * @param payloadType   The type to decode the event payload into.
+         * @param options       Controls which thread(s) the handler runs on and how messages are ordered.
+         * @param handler       The unit of work to execute when the gateway receives a matching event.
+         * @return this
+         */
+        public <T> EventStream on(String eventName, String consumerGroup, Class<T> payloadType, RouteOptions options, Consumer<T> handler) {
+            return on(eventName, consumerGroup, options, msg -> handler.accept(decode(msg, payloadType)));
         }
 
         /**
@@ -135,37 +380,522 @@ public class EventGateway implements Closeable {
          * @return this
          */
         public EventStream on(String eventName, String consumerGroup, Consumer<Message> handler) {
+            return on(eventName, consumerGroup, (RouteOptions) null, handler);
+        }
+
+        /**
+         * Registers an event-based route/consumer that dispatches messages according to the given options. Either
+         * way, a message is only acked once your handler has finished with it.
+         *
+         * @param eventName     The event to listen for. Can include wildcards (e.g. "user.>" or "*.created.>")
+         * @param consumerGroup If running multiple instances only 1 in this group will get the event.
+         * @param options       Controls which thread(s) the handler runs on and how messages are ordered.
+         * @param handler       The unit of work to execute when the gateway receives a matching event.
+         * @return this
+         */
+        public EventStream on(String eventName, String consumerGroup, RouteOptions options, Consumer<Message> handler) {
+            if (router != null) {
+                if (options != null) {
+                    throw new IllegalStateException("Routes can't have their own options in router mode: " + consumerGroup);
+                }
+                router.add(eventName, consumerGroup, handler);
+                return this;
+            }
+
+            var routeOptions = options == null ? RouteOptions.inline() : options;
+            afterReady(() -> consume(List.of(eventName), consumerGroup, eventName, routeOptions, handler));
+            return this;
+        }
+
+        /**
+         * Switches this stream into router mode. Rather than each on() call creating its own durable consumer, all
+         * of this stream's routes share a single consumer and messages are dispatched to the matching routes
+         * in-process. This cuts down on server-side consumer state, and a message that matches several routes is
+         * only delivered to us once instead of once per route.
+         * <p>
+         * The trade-offs: the consumer group passed to each on() is just a label, so every instance running this
+         * stream has to register the same routes. Route-specific options aren't allowed; the options given here
+         * apply to the shared consumer. A message is acked once all of its routes finish; if any route fails,
+         * the whole message is retried, so the other routes will see it again.
+         * <p>
+         * The shared consumer doesn't start until you call EventGateway.start().
+         *
+         * @param consumerGroup The durable consumer shared by all routes on this stream.
+         * @param options       Threading, retry, and flow control options for the shared consumer.
+         * @return this
+         */
+        public EventStream router(String consumerGroup, RouteOptions options) {
+            this.router = new Router(consumerGroup, options);
+            routedStreams.add(this);
+            return this;
+        }
+
+        /**
+         * Creates the router's shared consumer, filtering on the smallest set of subjects that covers every route.
+         */
+        private synchronized void startRouter() throws Exception {
+            if (router == null || router.started) {
+                return;
+            }
+            var filterSubjects = SubjectTrie.minimalCover(router.patterns);
+            logger.info("Routing %s -> %s via %s", streamName, filterSubjects, router.consumerGroup);
+            consume(filterSubjects, router.consumerGroup, String.join(",", filterSubjects), router.options, router::dispatch);
+            router.started = true;
+        }
+
+        /**
+         * Creates/updates a durable consumer for the given subjects and starts feeding its messages to the handler.
+         */
+        private void consume(List<String> filterSubjects, String consumerGroup, String eventName, RouteOptions options, Consumer<Message> handler) throws Exception {
+            var retryPolicy = options.retryPolicy();
+            if (retryPolicy.deadLetters()) {
+                ensureDeadLetterStream();
+            }
+
+            // We make the dead-letter decision ourselves when a handler throws, but leave NATS one extra delivery
+            // so that a message whose last attempt timed out (rather than failed) still makes it to us to park.
+            provisioner.provision(streamName, options.configure(ConsumerSpec.durable(consumerGroup))
+                .inactiveThreshold(ofDays(14))
+                .filterSubjects(filterSubjects)
+                .maxDeliver(retryPolicy.deadLetters() ? retryPolicy.maxDeliveries() + 1 : -1));
+
+            var consumerContext = jetStream.getConsumerContext(streamName, consumerGroup);
+            if (options.isInline()) {
+                // Normally, you'd capture the consumer and close() it, but the only time we close it is when
+                // we shut down the program. Closing the NATS connection on shutdown will take care of this anyway.
+                consumerContext.consume(options.consumeOptions(), msg -> handle(eventName, consumerGroup, retryPolicy, handler, msg));
+                return;
+            }
+
+            // Hop off of the dispatcher thread so it can keep handing us messages while this one is worked on. The
+            // flow control keeps the dispatcher from shoveling messages into the lanes faster than they drain.
+            var lanes = options.newExecutor();
+            routeExecutors.add(lanes);
+
+            var flowControl = new FlowControl(consumerGroup, consumerContext, options);
+            flowControl.start(msg -> {
+                flowControl.acquire();
+                try {
+                    lanes.execute(partitionKey(options, msg), () -> {
+                        try {
+                            handle(eventName, consumerGroup, retryPolicy, handler, msg);
+                        }
+                        finally {
+                            flowControl.release();
+                        }
+                    });
+                }
+                catch (RejectedExecutionException e) {
+                    // We're shutting down. The message was never acked, so NATS will redeliver it later.
+                    flowControl.release();
+                    throw e;
+                }
+            });
+        }
+
+        /**
+         * Registers an event-based route/consumer that processes messages in bulk rather than one at a time. It
+         * pulls up to maxMessages at once, waiting at most maxWait for the batch to fill, and hands the whole
+         * batch to your handler. The consumer uses NATS's "AckAll" policy, so acking the last message in the
+         * batch acknowledges everything before it - one ack per batch instead of one per message.
+         * <p>
+         * This is meant for high-volume, low-stakes routes like analytics ingest. Like on(), the batch is acked
+         * whether or not the handler succeeds, and since it's a single ack, one bad message takes its whole
+         * batch with it.
+         * <p>
+         * Only run ONE instance per batch consumer group. With AckAll, acking a sequence also acks every lower
+         * sequence on the consumer, including ones another instance fetched and is still working on. If that
+         * instance then died, its messages would never be redelivered. Use on() for anything that needs to
+         * scale out across instances.
+         * <p>
+         * Note: NATS won't let you change an existing consumer's ack policy. If the consumer group already
+         * exists with per-message acks, it's deleted and recreated, so anything it hadn't consumed yet is skipped.
+         *
+         * @param eventName     The event to listen for. Can include wildcards (e.g. "user.>" or "*.created.>")
+         * @param consumerGroup The durable consumer for the route. Only one instance may consume from it (see above).
+         * @param maxMessages   The most messages to hand to the handler at once.
+         * @param maxWait       How long to wait for a batch to fill before handling whatever we've got.
+         * @param handler       The unit of work to execute for each batch of matching events.
+         * @return this
+         */
+        public EventStream onBatch(String eventName, String consumerGroup, int maxMessages, Duration maxWait, Consumer<List<Message>> handler) {
+            afterReady(() -> consumeBatches(eventName, consumerGroup, maxMessages, maxWait, handler));
+            return this;
+        }
+
+        /**
+         * Creates/updates the batch route's AckAll consumer and starts the thread that fetches its batches.
+         */
+        private void consumeBatches(String eventName, String consumerGroup, int maxMessages, Duration maxWait, Consumer<List<Message>> handler) throws Exception {
+            var consumerSpec = ConsumerSpec.durable(consumerGroup)
+                .ackPolicy(AckPolicy.All)
+                .inactiveThreshold(ofDays(14))
+                .filterSubjects(List.of(eventName));
+
             try {
-                jetStreamManagement.addOrUpdateConsumer(streamName, ConsumerConfiguration.builder()
-                    .durable(consumerGroup)
-                    .deliverPolicy(DeliverPolicy.New)
-                    .inactiveThreshold(ofDays(14))
-                    .filterSubject(eventName)
-                    .build());
-
-                MessageHandler messageHandler = msg -> {
+                provisioner.provision(streamName, consumerSpec);
+            }
+            catch (JetStreamApiException e) {
+                // Anything other than "you can't change the ack policy" (a blip, bad config, permissions) is a real
+                // problem, and deleting the group's durable would throw away its undelivered messages for nothing.
+                if (!isAckPolicyChange(e)) {
+                    throw e;
+                }
+                logger.info("Recreating consumer to switch it to batch acks: %s (%s)", consumerGroup, e.getMessage());
+                jetStreamManagement.deleteConsumer(streamName, consumerGroup);
+                provisioner.provision(streamName, consumerSpec);
+            }
+
+            var metrics = batchMetrics.computeIfAbsent(consumerGroup, BatchMetrics::new);
+            var fetchOptions = FetchConsumeOptions.builder()
+                .maxMessages(maxMessages)
+                .expiresIn(maxWait.toMillis())
+                .build();
+
+            var consumerContext = jetStream.getConsumerContext(streamName, consumerGroup);
+            var fetchThread = new Thread(() -> {
+                while (!closed) {
                     try {
-                        logger.info("Handling event: %s/%s", eventName, consumerGroup);
-                        handler.accept(msg);
+                        long start = System.nanoTime();
+                        var batch = new ArrayList<Message>(maxMessages);
+                        try (var fetch = consumerContext.fetch(fetchOptions)) {
+                            for (var msg = fetch.nextMessage(); msg != null; msg = fetch.nextMessage()) {
+                                batch.add(msg);
+                            }
+                        }
+                        metrics.record(batch.size(), System.nanoTime() - start);
+
+                        if (!batch.isEmpty()) {
+                            handleBatch(eventName, consumerGroup, handler, batch);
+                        }
                     }
-                    catch (Exception e) {
-                        logger.error(e, "Error handling event: %s: %s", eventName, e.getMessage());
+                    catch (InterruptedException e) {
+                        return;
                     }
-                    finally {
-                        // In a *real* distributed system, you'd probably want to have some sort of retry logic.
-                        msg.ack();
+                    catch (Exception e) {
+                        if (!closed) {
+                            logger.error(e, "Error fetching batch: %s/%s", eventName, consumerGroup);
+                            Utils.sleepSeconds(1);
+                        }
                     }
-                };
+                }
+            }, "batch-" + consumerGroup);
 
-                // Normally, you'd capture the consumer and close() it, but the only time we close it is when
-                // we shut down the program. Closing the NATS connection on shutdown will take care of this anyway.
-                jetStream.getConsumerContext(streamName, consumerGroup).consume(messageHandler);
-                return this;
+            fetchThread.setDaemon(true);
+            fetchThread.start();
+        }
+
+        /**
+         * The server refuses to change an existing consumer's ack policy with a generic "consumer create" error
+         * whose description spells out what went wrong, so that's what we look for.
+         */
+        private boolean isAckPolicyChange(JetStreamApiException e) {
+            var description = e.getErrorDescription();
+            return e.getApiErrorCode() == CONSUMER_CREATE_ERROR
+                && description != null
+                && description.toLowerCase().contains("ack policy");
+        }
+
+        /**
+         * Runs the route's handler for a whole batch, then acks the batch in one shot by acking its last message.
+         */
+        private void handleBatch(String eventName, String consumerGroup, Consumer<List<Message>> handler, List<Message> batch) {
+            try {
+                logger.info("Handling batch of %d events: %s/%s", batch.size(), eventName, consumerGroup);
+                handler.accept(batch);
             }
             catch (Exception e) {
-                throw new RuntimeException(e);
+                logger.error(e, "Error handling batch: %s: %s", eventName, e.getMessage());
+            }
+            finally {
+                // AckAll policy: this acks every message in the batch, not just the last one.
+                batch.get(batch.size() - 1).ack();
+            }
+        }
+
+        /**
+         * Runs the route's handler for a single message and acks it once it's done. If the handler fails, the
+         * retry policy decides whether the message is redelivered later or moved to the dead-letter stream.
+         * Messages we've already handled successfully (based on their Nats-Msg-Id) are acked without running
+         * the handler at all.
+         */
+        private void handle(String eventName, String consumerGroup, RetryPolicy retryPolicy, Consumer<Message> handler, Message msg) {
+            // If we've already handled this exact event (by its publisher-assigned id), don't bother doing it again.
+            var messageID = msg.hasHeaders() ? msg.getHeaders().getFirst(MSG_ID_HEADER) : null;
+            var dedupeKey = messageID == null ? null : consumerGroup + "/" + messageID;
+            if (dedupeKey != null && idempotencyFilter.seen(dedupeKey)) {
+                logger.info("Skipping duplicate event: %s/%s", messageID, consumerGroup);
+                msg.ack();
+                return;
+            }
+
+            long deliveryCount = msg.metaData().deliveredCount();
+            if (retryPolicy.deadLetters() && deliveryCount > retryPolicy.maxDeliveries()) {
+                // Our last attempt must have timed out rather than failed, so we never got the chance to park it.
+                deadLetter(consumerGroup, msg, deliveryCount, "Handler timed out");
+                return;
+            }
+
+            ScheduledFuture<?> heartbeat = startHeartbeat(retryPolicy, msg);
+            try {
+                logger.info("Handling event: %s/%s", eventName, consumerGroup);
+                handler.accept(msg);
+                msg.ack();
+
+                if (dedupeKey != null) {
+                    idempotencyFilter.record(dedupeKey);
+                }
+            }
+            catch (Exception e) {
+                logger.error(e, "Error handling event: %s: %s", eventName, e.getMessage());
+
+                if (retryPolicy.shouldRetry(deliveryCount)) {
+                    var delay = retryPolicy.backoff(deliveryCount);
+                    logger.info("Retrying event in %dms (attempt %d of %d): %s/%s", delay.toMillis(), deliveryCount + 1, retryPolicy.maxDeliveries(), eventName, consumerGroup);
+                    msg.nakWithDelay(delay);
+                }
+                else if (retryPolicy.deadLetters()) {
+                    deadLetter(consumerGroup, msg, deliveryCount, e.toString());
+                }
+                else {
+                    msg.ack();
+                }
+            }
+            finally {
+                if (heartbeat != null) {
+                    heartbeat.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * If the policy calls for it, periodically tells NATS that we're still working on this message.
+         */
+        private ScheduledFuture<?> startHeartbeat(RetryPolicy retryPolicy, Message msg) {
+            var interval = retryPolicy.heartbeatInterval();
+            if (interval == null) {
+                return null;
+            }
+            return heartbeats.scheduleAtFixedRate(msg::inProgress, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Copies the message (and its original headers) to the dead-letter stream and then tells NATS to stop
+         * redelivering it. The dead-letter subject is "deadletter.{consumerGroup}.{originalSubject}" so you can
+         * easily find/replay the failures for a specific route.
+         */
+        private void deadLetter(String consumerGroup, Message msg, long deliveryCount, String reason) {
+            try {
+                var headers = msg.hasHeaders() ? new Headers(msg.getHeaders()) : new Headers();
+                headers.put("DeadLetter-Stream", streamName);
+                headers.put("DeadLetter-Consumer", consumerGroup);
+                headers.put("DeadLetter-Subject", msg.getSubject());
+                headers.put("DeadLetter-Deliveries", String.valueOf(deliveryCount));
+                headers.put("DeadLetter-Reason", reason.replaceAll("[\\r\\n]+", " "));
+
+                logger.error("Moving event to dead-letter stream after %d attempts: %s/%s", deliveryCount, msg.getSubject(), consumerGroup);
+                jetStream.publish("deadletter." + consumerGroup + "." + msg.getSubject(), headers, msg.getData());
+                msg.term();
+            }
+            catch (Exception e) {
+                // Better to try again later than to lose the message entirely.
+                logger.error(e, "Unable to dead-letter event: %s/%s", msg.getSubject(), consumerGroup);
+                msg.nakWithDelay(Duration.ofSeconds(30));
+            }
+        }
+
+        /**
+         * Figures out the message's lane. A key extractor that blows up (e.g. garbage payload) shouldn't take
+         * down the dispatcher, so that just means "no particular lane". The handler will deal with the garbage.
+         */
+        private String partitionKey(RouteOptions options, Message msg) {
+            try {
+                return options.partitionKey(msg);
+            }
+            catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The in-process side of router mode: a compiled trie of route patterns and the handlers they map to.
+     */
+    private class Router {
+        private final String consumerGroup;
+        private final RouteOptions options;
+        private final SubjectTrie<Route> routes = new SubjectTrie<>();
+        private final List<String> patterns = new CopyOnWriteArrayList<>();
+        private boolean started;
+
+        private Router(String consumerGroup, RouteOptions options) {
+            this.consumerGroup = consumerGroup;
+            this.options = options;
+        }
+
+        private void add(String eventName, String routeName, Consumer<Message> handler) {
+            if (started) {
+                throw new IllegalStateException("Can't add routes after the router has started: " + routeName);
+            }
+            routes.add(eventName, new Route(routeName, handler));
+            patterns.add(eventName);
+        }
+
+        /**
+         * Runs every route matching the message's subject. All of them get a shot even if an earlier one fails;
+         * we just re-throw the first failure afterwards so the message gets retried.
+         */
+        private void dispatch(Message msg) {
+            RuntimeException failure = null;
+            for (var route : routes.match(msg.getSubject())) {
+                try {
+                    logger.info("Routing event: %s -> %s", msg.getSubject(), route.name);
+                    route.handler.accept(msg);
+                }
+                catch (RuntimeException e) {
+                    logger.error(e, "Error in route: %s: %s", route.name, e.getMessage());
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * A single named handler registered with a Router.
+     */
+    private static class Route {
+        private final String name;
+        private final Consumer<Message> handler;
+
+        private Route(String name, Consumer<Message> handler) {
+            this.name = name;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Pauses a route's consumer when too many messages pile up in-process, and resumes it once they drain. The
+     * jnats consumer doesn't have a "pause" button, so pausing means stopping the consumer (anything already
+     * pulled still gets delivered) and resuming means starting a brand-new one on the same durable consumer.
+     */
+    private class FlowControl {
+        private final String consumerGroup;
+        private final ConsumerContext consumerContext;
+        private final ConsumeOptions consumeOptions;
+        private final int highWaterMark;
+        private final int lowWaterMark;
+        private final AtomicInteger inProcess = new AtomicInteger();
+        private MessageHandler handler;
+        private MessageConsumer consumer;
+        private boolean paused;
+
+        private FlowControl(String consumerGroup, ConsumerContext consumerContext, RouteOptions options) {
+            this.consumerGroup = consumerGroup;
+            this.consumerContext = consumerContext;
+            this.consumeOptions = options.consumeOptions();
+            this.highWaterMark = options.highWaterMark();
+            this.lowWaterMark = options.highWaterMark() / 2;
+        }
+
+        private synchronized void start(MessageHandler handler) throws Exception {
+            this.handler = handler;
+            this.consumer = consumerContext.consume(consumeOptions, handler);
+        }
+
+        /**
+         * Called as a message enters the in-process backlog.
+         */
+        private void acquire() {
+            if (inProcess.incrementAndGet() >= highWaterMark && highWaterMark > 0) {
+                pause();
             }
         }
+
+        /**
+         * Called as a message leaves the in-process backlog (handled, nak'd, whatever).
+         */
+        private void release() {
+            if (inProcess.decrementAndGet() <= lowWaterMark && highWaterMark > 0) {
+                resume();
+            }
+        }
+
+        /**
+         * acquire()/release() check the water marks without the lock, so by the time we get it, the backlog may
+         * have drained (or filled back up). We check again here; otherwise a pause that loses the race with the
+         * last release() would stop the consumer with nothing left in flight to ever resume it.
+         */
+        private synchronized void pause() {
+            if (paused || consumer == null || inProcess.get() < highWaterMark) {
+                return;
+            }
+            logger.info("Pausing consumer; %d events waiting to be handled: %s", inProcess.get(), consumerGroup);
+            consumer.stop();
+            paused = true;
+        }
+
+        private synchronized void resume() {
+            if (!paused || closed || inProcess.get() > lowWaterMark) {
+                return;
+            }
+            try {
+                logger.info("Resuming consumer: %s", consumerGroup);
+                consumer = consumerContext.consume(consumeOptions, handler);
+                paused = false;
+            }
+            catch (Exception e) {
+                // We'll try again when the next message finishes.
+                logger.error(e, "Unable to resume consumer: %s", consumerGroup);
+            }
+        }
+    }
+
+    /**
+     * Creates the stream that holds dead-lettered messages if we haven't already.
+     */
+    private synchronized void ensureDeadLetterStream() throws Exception {
+        if (deadLetterStreamReady) {
+            return;
+        }
+
+        provisioner.provision(StreamSpec.named(DEAD_LETTER_STREAM)
+            .subjects("deadletter.>")
+            .maxAge(ofDays(14)));
+        deadLetterStreamReady = true;
+    }
+
+    /**
+     * A bit of stream/consumer setup that runs in the background once its stream exists.
+     */
+    @FunctionalInterface
+    private interface SetupTask {
+        void run() throws Exception;
+    }
+
+    /**
+     * The encoded bytes for an event along with the codec that produced them.
+     */
+    private static class EncodedEvent {
+        private final EventCodec codec;
+        private final byte[] data;
+        private final String messageID;
+
+        private EncodedEvent(EventCodec codec, byte[] data, String messageID) {
+            this.codec = codec;
+            this.data = data;
+            this.messageID = messageID;
+        }
+
+        private Headers headers() {
+            var headers = new Headers().put(CONTENT_TYPE_HEADER, codec.contentType());
+            if (messageID != null) {
+                headers.put(MSG_ID_HEADER, messageID);
+            }
+            return headers;
+        }
     }
 
     /**
@@ -174,4 +904,130 @@ public class EventGateway implements Closeable {
     public interface Publisher {
         void publish(String eventName, Object payload);
     }
+
+    /**
+     * Determines how long a call to publish() waits around for NATS to confirm that an event was stored.
+     */
+    public enum PublishMode {
+        /** Block until JetStream acks the event, just like the standard publisher(). */
+        SYNC,
+        /**
+         * Pipeline the publish; the ack (or failure) is handled in the background. The caller never finds out
+         * about a failure (we just log it), so only use this for events you could live without.
+         */
+        ASYNC,
+        /** Core NATS publish. The stream still captures it, but we never ask for an ack. */
+        FIRE_AND_FORGET
+    }
+
+    /**
+     * A Publisher that pipelines JetStream publishes rather than waiting on each PubAck in turn. The
+     * number of un-acked publishes is capped by a semaphore-based window, so a slow/unavailable server
+     * results in publishers blocking rather than an ever-growing pile of pending futures in memory.
+     */
+    public class AsyncPublisher implements Publisher {
+        private final Semaphore window;
+        private final int maxInFlight;
+        private final Map<String, PublishMode> modes;
+        private volatile PublishMode defaultMode;
+
+        private AsyncPublisher(int maxInFlight) {
+            this.window = new Semaphore(maxInFlight);
+            this.maxInFlight = maxInFlight;
+            this.modes = new ConcurrentHashMap<>();
+            this.defaultMode = PublishMode.SYNC;
+        }
+
+        /**
+         * Overrides the publish mode for a specific event (e.g. "order.placed"). Wildcards are NOT
+         * supported here; it's an exact match on the event name.
+         *
+         * @return this
+         */
+        public AsyncPublisher mode(String eventName, PublishMode mode) {
+            modes.put(eventName, mode);
+            return this;
+        }
+
+        /**
+         * Sets the mode used for any event that doesn't have its own explicit mode.
+         *
+         * @return this
+         */
+        public AsyncPublisher defaultMode(PublishMode mode) {
+            this.defaultMode = mode;
+            return this;
+        }
+
+        /**
+         * Publishes the event using whichever mode is configured for this event name.
+         */
+        @Override
+        public void publish(String eventName, Object payload) {
+            switch (modes.getOrDefault(eventName, defaultMode)) {
+            case SYNC:
+                publishAsync(eventName, payload).join();
+                break;
+            case ASYNC:
+                publishAsync(eventName, payload).whenComplete((ack, err) -> {
+                    if (err != null) {
+                        logger.error(err, "Async publish failed: %s", eventName);
+                    }
+                });
+                break;
+            case FIRE_AND_FORGET:
+                logger.info("Publishing event (no ack): %s", eventName);
+                var event = encode(eventName, payload);
+                nats.publish(eventName, event.headers(), event.data);
+                break;
+            }
+        }
+
+        /**
+         * Posts the event to JetStream without waiting for the ack. If the in-flight window is full, this
+         * blocks until one of the outstanding publishes has been acked (or failed).
+         *
+         * @return A future that completes with the stream's ack once NATS has stored the event.
+         */
+        public CompletableFuture<PublishAck> publishAsync(String eventName, Object payload) {
+            try {
+                window.acquire();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            }
+
+            try {
+                logger.info("Publishing event (async): %s", eventName);
+                var event = encode(eventName, payload);
+                return jetStream.publishAsync(eventName, event.headers(), event.data)
+                    .whenComplete((ack, err) -> window.release());
+            }
+            catch (Exception e) {
+                window.release();
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+
+        /**
+         * Blocks until every in-flight publish has been acked/failed, or the timeout elapses. Use this
+         * when you need to know your events are durable (e.g. right before shutting down).
+         *
+         * @return True if everything was acked in time; false if we gave up waiting.
+         */
+        public boolean flush(Duration timeout) {
+            try {
+                if (!window.tryAcquire(maxInFlight, timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+                window.release(maxInFlight);
+                return true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
 }
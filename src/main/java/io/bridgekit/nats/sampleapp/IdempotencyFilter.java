@@ -0,0 +1,183 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers which message ids this process has already handled recently so that duplicate deliveries (client
+ * retries, redeliveries after a lost ack, etc.) can be dropped before they ever reach handler code.
+ * <p>
+ * There are two layers. A pair of rotating Bloom filters answers "definitely never seen it" without taking any
+ * locks, which is the answer for almost every message. Only when the Bloom filter says "maybe" do we check the
+ * exact LRU map, which rules out the Bloom filter's false positives. Entries age out after the time window, so
+ * memory stays bounded no matter how many messages flow through.
+ * <p>
+ * This is per-process. It catches duplicates delivered to the same instance; it's not a distributed lock.
+ */
+public class IdempotencyFilter {
+    private final long windowMillis;
+    private final int maxEntries;
+    private final AtomicReference<Generations> bloom;
+    private final Map<String, Long> recent;
+    private final LongAdder duplicates = new LongAdder();
+    private final LongSupplier clock;
+
+    /**
+     * @param window     How long we remember a message id after it was handled.
+     * @param maxEntries The most ids we'll hold exactly in the LRU at any one time.
+     */
+    public IdempotencyFilter(Duration window, int maxEntries) {
+        this(window, maxEntries, System::currentTimeMillis);
+    }
+
+    /**
+     * Lets tests control what time it is.
+     */
+    IdempotencyFilter(Duration window, int maxEntries, LongSupplier clock) {
+        this.windowMillis = window.toMillis();
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        this.bloom = new AtomicReference<>(new Generations(new BloomFilter(maxEntries), new BloomFilter(maxEntries), clock.getAsLong()));
+        this.recent = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > IdempotencyFilter.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns true if we've already handled a message with this id within the time window.
+     */
+    public boolean seen(String id) {
+        if (!generations().mightContain(id)) {
+            return false;
+        }
+
+        synchronized (recent) {
+            var handledAt = recent.get(id);
+            if (handledAt == null || clock.getAsLong() - handledAt > windowMillis) {
+                return false;
+            }
+        }
+        duplicates.increment();
+        return true;
+    }
+
+    /**
+     * Marks the id as handled. Only call this once the handler has actually succeeded; otherwise a legit retry
+     * would get mistaken for a duplicate.
+     */
+    public void record(String id) {
+        generations().current.add(id);
+        synchronized (recent) {
+            recent.put(id, clock.getAsLong());
+        }
+    }
+
+    /**
+     * The number of duplicates we've rejected so far.
+     */
+    public long duplicates() {
+        return duplicates.sum();
+    }
+
+    /**
+     * Returns the current Bloom filters, rotating out the oldest generation once the current one is a full window
+     * old. An id recorded at the very end of a generation still spends the whole next window in 'previous', so
+     * the pair of them never forgets anything younger than the window.
+     * <p>
+     * We only rotate on time, never because a generation got busy. Rotating early would throw away ids that are
+     * still inside the window; a crowded filter just says "maybe" more often, which costs an LRU lookup, not a
+     * missed duplicate. (The LRU only holds maxEntries ids, though, so that's the real cap on what we remember.)
+     */
+    private Generations generations() {
+        var generations = bloom.get();
+        long now = clock.getAsLong();
+        if (now - generations.startedAt < windowMillis) {
+            return generations;
+        }
+
+        var rotated = new Generations(new BloomFilter(maxEntries), generations.current, now);
+        return bloom.compareAndSet(generations, rotated) ? rotated : bloom.get();
+    }
+
+    private static class Generations {
+        private final BloomFilter current;
+        private final BloomFilter previous;
+        private final long startedAt;
+
+        private Generations(BloomFilter current, BloomFilter previous, long startedAt) {
+            this.current = current;
+            this.previous = previous;
+            this.startedAt = startedAt;
+        }
+
+        private boolean mightContain(String id) {
+            return current.mightContain(id) || previous.mightContain(id);
+        }
+    }
+
+    /**
+     * A lock-free Bloom filter sized for ~1% false positives at the given capacity.
+     */
+    private static class BloomFilter {
+        private static final int NUM_HASHES = 7;
+
+        private final AtomicLongArray bits;
+        private final int numBits;
+
+        private BloomFilter(int capacity) {
+            // m = -n * ln(p) / ln(2)^2, which works out to ~9.6 bits per entry at p = 0.01.
+            this.numBits = Math.max(64, (int) Math.min(Integer.MAX_VALUE - 64L, (long) Math.ceil(capacity * 9.6)));
+            this.bits = new AtomicLongArray((numBits + 63) / 64);
+        }
+
+        private void add(String id) {
+            long hash = hash(id);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, numBits);
+                int word = bit >>> 6;
+                long mask = 1L << bit;
+                long current;
+                do {
+                    current = bits.get(word);
+                } while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        private boolean mightContain(String id) {
+            long hash = hash(id);
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int bit = Math.floorMod(h1 + i * h2, numBits);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Spreads String.hashCode() out over 64 bits (MurmurHash3's finalizer) so we can derive all of our hash
+         * functions from it via double hashing.
+         */
+        private static long hash(String id) {
+            long h = id.hashCode() * 0x9E3779B97F4A7C15L;
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB9FE1A85EC53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+}
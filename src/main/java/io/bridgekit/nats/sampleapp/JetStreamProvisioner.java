@@ -0,0 +1,117 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.bridgekit.nats.Logger;
+import io.nats.client.JetStreamApiException;
+import io.nats.client.JetStreamManagement;
+import io.nats.client.api.ConsumerConfiguration;
+import io.nats.client.api.StreamConfiguration;
+
+/**
+ * Makes the streams/consumers on the server match their specs while doing as little work as possible. Every
+ * config we write is stamped with a fingerprint (a hash of the config itself) in its metadata. On the next
+ * startup, if the server's copy carries the same fingerprint, nothing changed and we skip the update entirely.
+ * That turns the usual "update, and if that 404s then add" dance into a single, cheap info lookup in the
+ * common case where nothing has changed since the last deploy.
+ */
+public class JetStreamProvisioner {
+    /**
+     * The metadata key holding the hash of the config that was last written.
+     */
+    public static final String FINGERPRINT_KEY = "bridgekit.fingerprint";
+
+    private final Logger logger = Logger.instance(JetStreamProvisioner.class);
+    private final JetStreamManagement jetStreamManagement;
+
+    public JetStreamProvisioner(JetStreamManagement jetStreamManagement) {
+        this.jetStreamManagement = jetStreamManagement;
+    }
+
+    /**
+     * Creates the stream if it doesn't exist or updates it if it has drifted from the spec.
+     *
+     * @return True if we had to create/update the stream; false if it was already up to date.
+     */
+    public boolean provision(StreamSpec spec) throws Exception {
+        var config = spec.toConfiguration();
+        var fingerprint = fingerprint(config.toJson());
+        var stampedConfig = StreamConfiguration.builder(config).metadata(stamp(config.getMetadata(), fingerprint)).build();
+
+        try {
+            var current = jetStreamManagement.getStreamInfo(spec.name()).getConfiguration();
+            if (fingerprint.equals(fingerprintOf(current.getMetadata()))) {
+                logger.info("Stream already up to date: %s", spec.name());
+                return false;
+            }
+            logger.info("Updating stream: %s", spec.name());
+            jetStreamManagement.updateStream(stampedConfig);
+            return true;
+        }
+        catch (JetStreamApiException e) {
+            if (e.getErrorCode() != 404) {
+                throw e;
+            }
+            logger.info("Creating stream: %s", spec.name());
+            jetStreamManagement.addStream(stampedConfig);
+            return true;
+        }
+    }
+
+    /**
+     * Creates the durable consumer if it doesn't exist or updates it if it has drifted from the spec.
+     *
+     * @return True if we had to create/update the consumer; false if it was already up to date.
+     */
+    public boolean provision(String streamName, ConsumerSpec spec) throws Exception {
+        var config = spec.toConfiguration();
+        var fingerprint = fingerprint(config.toJson());
+        var stampedConfig = ConsumerConfiguration.builder(config).metadata(stamp(config.getMetadata(), fingerprint)).build();
+
+        try {
+            var current = jetStreamManagement.getConsumerInfo(streamName, spec.name()).getConsumerConfiguration();
+            if (fingerprint.equals(fingerprintOf(current.getMetadata()))) {
+                logger.info("Consumer already up to date: %s/%s", streamName, spec.name());
+                return false;
+            }
+        }
+        catch (JetStreamApiException e) {
+            if (e.getErrorCode() != 404) {
+                throw e;
+            }
+        }
+
+        logger.info("Creating/updating consumer: %s/%s", streamName, spec.name());
+        jetStreamManagement.addOrUpdateConsumer(streamName, stampedConfig);
+        return true;
+    }
+
+    private static Map<String, String> stamp(Map<String, String> metadata, String fingerprint) {
+        var stamped = metadata == null ? new HashMap<String, String>() : new HashMap<>(metadata);
+        stamped.put(FINGERPRINT_KEY, fingerprint);
+        return stamped;
+    }
+
+    private static String fingerprintOf(Map<String, String> metadata) {
+        return metadata == null ? null : metadata.get(FINGERPRINT_KEY);
+    }
+
+    /**
+     * A short, stable hash of the config's JSON form. We hash the config *before* stamping it, so the
+     * fingerprint never includes itself.
+     */
+    private static String fingerprint(String configJSON) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(configJSON.getBytes(UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 12);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
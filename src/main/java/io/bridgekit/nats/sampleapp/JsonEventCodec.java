@@ -0,0 +1,156 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import static io.bridgekit.nats.Utils.marshalJSON;
+import static io.bridgekit.nats.Utils.unmarshalJSON;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The default EventCodec that formats payloads as JSON. Unlike Utils.marshalJSON(), this streams the
+ * JSON straight into a per-thread, reusable byte buffer rather than building a String first. Decoding
+ * works the same way in reverse; Gson reads directly from the message's byte array.
+ * <p>
+ * The pooling only pays off on long-lived platform threads (NATS dispatchers, the HTTP server's workers, a
+ * fixed route executor). Routes that run on virtual threads get a brand new thread per message, so every encode
+ * there allocates a fresh buffer anyway, same as if we didn't pool at all. It doesn't hurt, it just doesn't help.
+ */
+public class JsonEventCodec implements EventCodec {
+    /**
+     * Buffers that grow past this size are thrown away rather than reused so that one giant event doesn't
+     * pin a bunch of memory to a thread forever.
+     */
+    private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+    private final ThreadLocal<EncodeBuffer> buffers = ThreadLocal.withInitial(EncodeBuffer::new);
+
+    @Override
+    public String contentType() {
+        return "application/json";
+    }
+
+    @Override
+    public byte[] encode(Object payload) {
+        var buffer = buffers.get();
+        var encoded = false;
+        try {
+            marshalJSON(payload, buffer.writer);
+            buffer.writer.flush();
+            var bytes = buffer.bytes.toByteArray();
+            encoded = true;
+            return bytes;
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        finally {
+            // If marshalling blew up halfway, the writer's encoder may still be holding chars that would get
+            // flushed into the next event, so don't reuse it.
+            if (!encoded || buffer.bytes.size() > MAX_POOLED_BUFFER_SIZE) {
+                buffers.remove();
+            }
+            else {
+                buffer.bytes.reset();
+            }
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> type) {
+        return unmarshalJSON(new Utf8Reader(data), type);
+    }
+
+    /**
+     * The reusable byte buffer and the UTF-8 writer that feeds it. We keep both around since the writer's
+     * internal encoder buffer is more expensive to allocate than most of the events we send.
+     */
+    private static class EncodeBuffer {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        private final Writer writer = new OutputStreamWriter(bytes, UTF_8);
+    }
+
+    /**
+     * A minimal Reader that decodes UTF-8 straight out of a byte array. InputStreamReader would work, too,
+     * but it allocates an 8KB decoding buffer every time you create one, which is way bigger than our events.
+     */
+    private static class Utf8Reader extends Reader {
+        private final byte[] data;
+        private int position;
+        private char pendingLowSurrogate;
+
+        private Utf8Reader(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= data.length && pendingLowSurrogate == 0) {
+                return -1;
+            }
+
+            int count = 0;
+            if (pendingLowSurrogate != 0) {
+                chars[offset + count++] = pendingLowSurrogate;
+                pendingLowSurrogate = 0;
+            }
+
+            while (count < length && position < data.length) {
+                int codePoint = nextCodePoint();
+                if (codePoint < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                    chars[offset + count++] = (char) codePoint;
+                    continue;
+                }
+
+                chars[offset + count++] = Character.highSurrogate(codePoint);
+                if (count < length) {
+                    chars[offset + count++] = Character.lowSurrogate(codePoint);
+                }
+                else {
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            }
+            return count;
+        }
+
+        private int nextCodePoint() {
+            int b = data[position++] & 0xFF;
+            if (b < 0x80) {
+                return b;
+            }
+            if ((b & 0xE0) == 0xC0) {
+                return continuation(b & 0x1F, 1);
+            }
+            if ((b & 0xF0) == 0xE0) {
+                return continuation(b & 0x0F, 2);
+            }
+            if ((b & 0xF8) == 0xF0) {
+                int codePoint = continuation(b & 0x07, 3);
+                return codePoint > Character.MAX_CODE_POINT ? 0xFFFD : codePoint;
+            }
+            return 0xFFFD; // malformed lead byte
+        }
+
+        private int continuation(int codePoint, int numBytes) {
+            for (int i = 0; i < numBytes; i++) {
+                if (position >= data.length || (data[position] & 0xC0) != 0x80) {
+                    return 0xFFFD; // truncated/malformed sequence
+                }
+                codePoint = (codePoint << 6) | (data[position++] & 0x3F);
+            }
+            return codePoint;
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release; it's just a byte array.
+        }
+    }
+}
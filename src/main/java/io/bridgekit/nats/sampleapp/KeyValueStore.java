@@ -1,18 +1,59 @@
 package io.bridgekit.nats.sampleapp;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
 import static io.bridgekit.nats.Utils.hasText;
 import static io.bridgekit.nats.Utils.marshalJSON;
 import static io.bridgekit.nats.Utils.unmarshalJSON;
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.sampleapp.NatsConnections.TrafficClass;
 import io.nats.client.Connection;
+import io.nats.client.FetchConsumeOptions;
+import io.nats.client.FetchConsumer;
+import io.nats.client.JetStream;
 import io.nats.client.JetStreamApiException;
 import io.nats.client.KeyValue;
-import io.nats.client.Nats;
+import io.nats.client.Message;
+import io.nats.client.OrderedConsumerContext;
+import io.nats.client.api.DeliverPolicy;
 import io.nats.client.api.KeyValueConfiguration;
+import io.nats.client.api.KeyValueEntry;
+import io.nats.client.api.KeyValueOperation;
+import io.nats.client.api.KeyValueWatchOption;
+import io.nats.client.api.KeyValueWatcher;
+import io.nats.client.api.OrderedConsumerConfiguration;
 import io.nats.client.api.StorageType;
+import io.nats.client.impl.NatsKeyValueWatchSubscription;
 
 /**
  * In a real application, you'd probably want to store your persistent data in an actual database. For this
@@ -21,34 +62,332 @@ import io.nats.client.api.StorageType;
  * <p>
  * Each instance of this class builds a NATS Key/Value store that maps a record id to a JSON document
  * representing that record's current state.
+ * <p>
+ * Close the store when you're done with it. That flushes any write-behind buffer, stops the watchers, and lets
+ * go of our hold on the shared NATS connection (which closes once nobody else is using it either).
  */
-public class KeyValueStore<T> {
+public class KeyValueStore<T> implements AutoCloseable {
+    /**
+     * How many records a scan pulls from NATS per round trip unless you say otherwise.
+     */
+    public static final int DEFAULT_SCAN_BATCH_SIZE = 256;
+
+    /**
+     * How many times compute() will re-read and retry after losing a race with another writer.
+     */
+    public static final int MAX_COMPUTE_ATTEMPTS = 10;
+
+    /**
+     * The JetStream API error code for "wrong last sequence", which is what a revision mismatch looks like.
+     */
+    private static final int WRONG_LAST_SEQUENCE = 10071;
+
+    private final Logger logger = Logger.instance(KeyValueStore.class);
     private final Class<T> entityType;
+    private final String bucketName;
+    private final NatsConnections.Lease lease;
     private final Connection nats;
-    private final KeyValue keyValue;
+    private final JetStream jetStream;
+    private final ConsistentHash ring;
+    private final List<Shard> shards;
+    private final ComputeMetrics computeMetrics;
+    private final DecodeCache<T> decodeCache;
+    private final Map<String, Function<T, String>> indexes = new ConcurrentHashMap<>();
+    private final List<NatsKeyValueWatchSubscription> watches = new CopyOnWriteArrayList<>();
+    private volatile KeyValue indexKeyValue;
+    private volatile Function<T, String> idOf;
+    private volatile NearCache<T> nearCache;
+    private volatile WriteBehind writeBehind;
 
     public KeyValueStore(Class<T> entityType, String bucketName) {
+        this(entityType, bucketName, 1);
+    }
+
+    /**
+     * Creates a store whose records are spread across several physical buckets ("shards") rather than one. Every
+     * bucket is backed by its own stream, so more shards means more streams (and servers, in a cluster) sharing
+     * the write load. Each key always lives in exactly one shard, picked by consistent hashing (see ConsistentHash),
+     * so gets/puts go straight to the right bucket and only scans need to look at all of them.
+     * <p>
+     * Shard 0 is just "{bucketName}" and the rest are "{bucketName}-{n}", so a store with 1 shard is exactly the
+     * same as an un-sharded one. If you change the number of shards for a store that already has data, run the
+     * Resharder first so that every record is sitting in the shard that now owns it.
+     *
+     * @param shards How many buckets to spread the records over.
+     */
+    public KeyValueStore(Class<T> entityType, String bucketName, int shards) {
+        this.entityType = entityType;
+        this.bucketName = bucketName;
+        this.computeMetrics = new ComputeMetrics(bucketName);
+        this.decodeCache = new DecodeCache<>(entityType, 10_000);
+        // All of the stores share one connection (see NatsConnections) rather than opening a socket apiece.
+        this.lease = NatsConnections.shared().acquire(TrafficClass.KEY_VALUE);
+        try {
+            this.nats = lease.connection();
+            this.jetStream = nats.jetStream();
+            this.ring = new ConsistentHash(shards);
+
+            var buckets = new ArrayList<Shard>(shards);
+            for (int shard = 0; shard < shards; shard++) {
+                var shardName = shardBucketName(bucketName, shard);
+                buckets.add(new Shard(shardName, connectKeyValueStore(shardName)));
+            }
+            this.shards = List.copyOf(buckets);
+        }
+        catch (Exception e) {
+            lease.close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The name of the physical bucket backing the given shard of a logical store.
+     */
+    static String shardBucketName(String bucketName, int shard) {
+        return shard == 0 ? bucketName : bucketName + "-" + shard;
+    }
+
+    /**
+     * The bucket that owns this record id.
+     */
+    private Shard shardFor(String id) {
+        return shards.get(ring.shardFor(id));
+    }
+
+    /**
+     * Turns on a local read-through cache for this store's hottest records. Reads that hit the cache skip the
+     * round trip to NATS and the JSON parse. To keep it from going stale when other instances write to the
+     * bucket, we watch the bucket and apply every remote put/delete to the cached records.
+     *
+     * @param maxEntries The most records to keep in memory; least recently used records are evicted first.
+     * @return this
+     */
+    public KeyValueStore<T> nearCache(int maxEntries) {
         try {
-            this.entityType = entityType;
-            this.nats = Nats.connect("nats://localhost:4222");
-            this.keyValue = connectKeyValueStore(bucketName);
+            var cache = new NearCache<>(entityType, maxEntries);
+            for (var shard : shards) {
+                watches.add(shard.keyValue.watchAll(new NearCacheUpdater(cache), KeyValueWatchOption.UPDATES_ONLY));
+            }
+            this.nearCache = cache;
+            return this;
         }
         catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Turns on write-behind mode for put(). Rather than waiting for JetStream to ack each write, put() just
+     * buffers the record and returns. Every so often, everything buffered is published to the bucket's
+     * "$KV.{bucket}.{key}" subjects at once, without waiting on acks one at a time. If the same record is put
+     * several times within the window, only the last version is actually written.
+     * <p>
+     * The trade-off is durability: a put() that returned isn't safely in NATS until the next flush. Call flush()
+     * when you need to be sure (e.g. before responding to a client or publishing an event about the record).
+     * Reads through this store see buffered writes right away (a write stays buffered until it's acked, not just
+     * until it's published); other instances don't until they're flushed. compute() always waits for any buffered
+     * or in-flight write to its record first, since it needs the real revision.
+     *
+     * @param window How long to buffer writes before flushing them.
+     * @return this
+     */
+    public KeyValueStore<T> writeBehind(Duration window) {
+        this.writeBehind = new WriteBehind(window);
+        return this;
+    }
+
+    /**
+     * Blocks until every write buffered by write-behind mode has been acked by JetStream. This is a no-op if
+     * write-behind isn't turned on.
+     */
+    public void flush() {
+        var buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush();
+        }
+    }
+
+    /**
+     * Declares a secondary index so you can look records up by something other than their id (e.g. transactions
+     * by their orderID). Rather than writing the whole record a second time under the other key, every put()
+     * writes a tiny pointer entry to a separate "{bucket}-index" bucket that maps "{indexName}.{value}" to the
+     * record's id. Use getBy() to look records up through the index.
+     * <p>
+     * Declare your indexes before writing any records; records written before the index existed won't be in it.
+     *
+     * @param indexName The name you'll use to refer to the index in getBy().
+     * @param indexKey  Extracts the indexed value from a record. Records where this returns null aren't indexed.
+     * @return this
+     */
+    public KeyValueStore<T> index(String indexName, Function<T, String> indexKey) {
+        try {
+            if (indexKeyValue == null) {
+                indexKeyValue = connectKeyValueStore(bucketName + "-index");
+            }
+            indexes.put(indexName, indexKey);
+            return this;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Tells the store which of the record's own fields is its id. Once it knows, any entry stored under some
+     * other key is treated as a stray copy and skipped by get(), scan(), values() and materialize(). Older
+     * versions of the app wrote some records twice (e.g. transactions under their orderID, too), and those
+     * leftover copies would otherwise show up as duplicates.
+     *
+     * @param idOf Extracts the id the record should be stored under.
+     * @return this
+     */
+    public KeyValueStore<T> keyedBy(Function<T, String> idOf) {
+        this.idOf = idOf;
+        return this;
+    }
+
+    /**
+     * Looks up a single record through one of the secondary indexes declared with index(). The pointer only holds
+     * the record's id, so this is two reads: one for the pointer and one for the record (which the near cache
+     * usually answers for hot records).
+     *
+     * @param indexName The index to search.
+     * @param value     The indexed value to look for (e.g. the orderID).
+     * @return An Optional wrapping the record. This will be a non-null, but empty if no record has that value.
+     */
+    public Optional<T> getBy(String indexName, String value) {
+        var indexKey = indexes.get(indexName);
+        if (indexKey == null) {
+            throw new IllegalArgumentException("No such index: " + indexName);
+        }
+        if (!hasText(value)) {
+            return Optional.empty();
+        }
+
+        try {
+            var pointer = indexKeyValue.get(indexName + "." + value);
+            if (pointer == null) {
+                return Optional.empty();
+            }
+
+            // If the record's indexed value has since changed, the pointer we found is stale; ignore it.
+            return get(pointer.getValueAsString())
+                .filter(record -> value.equals(indexKey.apply(record)));
+        }
+        catch (IOException | JetStreamApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads every record in the bucket into the query index and keeps it current from then on. This watches the
+     * whole bucket: the watcher first replays the latest value of every key (that's the "load" part) and then
+     * delivers every put/delete as it happens. This blocks until the initial load is done, so searches never see
+     * a half-built index. How long that takes depends on how big the bucket is, so you tell us how long you're
+     * willing to wait; if the load doesn't finish in time, we stop watching and throw.
+     *
+     * @param index       The index to load and keep current.
+     * @param loadTimeout How long to wait for every record to be loaded.
+     * @return this
+     */
+    public KeyValueStore<T> materialize(QueryIndex<T> index, Duration loadTimeout) {
+        var subscriptions = new ArrayList<NatsKeyValueWatchSubscription>(shards.size());
+        try {
+            // Each shard replays its own keys, so we're loaded once every one of them has reached the end.
+            var loaded = new CountDownLatch(shards.size());
+            for (var shard : shards) {
+                subscriptions.add(shard.keyValue.watchAll(new KeyValueWatcher() {
+                    @Override
+                    public void watch(KeyValueEntry entry) {
+                        if (entry.getOperation() == KeyValueOperation.PUT) {
+                            var record = decode(entry);
+                            if (!isStray(entry.getKey(), record)) {
+                                index.put(entry.getKey(), record);
+                            }
+                        }
+                        else {
+                            index.remove(entry.getKey());
+                        }
+                    }
+
+                    @Override
+                    public void endOfData() {
+                        loaded.countDown();
+                    }
+                }));
+            }
+
+            if (!loaded.await(loadTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                throw new IllegalStateException("Timed out loading query index after " + loadTimeout + ": " + bucketName);
+            }
+            watches.addAll(subscriptions);
+            return this;
+        }
+        catch (Exception e) {
+            subscriptions.forEach(NatsKeyValueWatchSubscription::unsubscribe);
+            throw e instanceof RuntimeException runtime ? runtime : new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Flushes any buffered writes, stops watching the buckets, and releases our lease on the shared connection.
+     * The store is no good after this.
+     */
+    @Override
+    public void close() {
+        var buffer = writeBehind;
+        try {
+            if (buffer != null) {
+                buffer.flush();
+            }
+        }
+        catch (RuntimeException e) {
+            logger.error(e, "Closing %s with unflushed writes", bucketName);
+        }
+        finally {
+            if (buffer != null) {
+                buffer.flusher.shutdownNow();
+            }
+            watches.forEach(NatsKeyValueWatchSubscription::unsubscribe);
+            lease.close();
+        }
+    }
+
+    /**
+     * How often reads of unchanged entries were able to skip the JSON parse.
+     */
+    public DecodeCache<T> decodeCache() {
+        return decodeCache;
+    }
+
+    /**
+     * How often compute() calls have been colliding with writes from other threads/instances.
+     */
+    public ComputeMetrics computeMetrics() {
+        return computeMetrics;
+    }
+
+    /**
+     * The store's near cache (and its hit/miss/eviction counts), or null if you never turned it on.
+     */
+    public NearCache<T> nearCache() {
+        return nearCache;
+    }
+
     /**
      * Returns true if this bucket/store does not contain ANY records. We use this internally to determine
      * if we need to fill in the fake order/transaction data.
      */
     public boolean isEmpty() {
         try {
-            // In a production app, asking for "all keys" is probably a bad idea since it doesn't scale
-            // even remotely well. I'm doing this here because I know the sample data set is a handful of
-            // keys. If you do need to iterate all keys, you can use `keyValue.consumeKeys()` to create
-            // a cursor and stream the keys.
-            return keyValue.keys().isEmpty();
+            // Don't list all of the keys just to see if there are any. The bucket's status already knows
+            // how many entries it has, and that's one cheap request no matter how big the bucket gets.
+            for (var shard : shards) {
+                if (shard.keyValue.getStatus().getEntryCount() > 0) {
+                    return false;
+                }
+            }
+            return true;
         }
         catch (IOException | JetStreamApiException | InterruptedException e) {
             throw new RuntimeException(e);
@@ -56,23 +395,95 @@ public class KeyValueStore<T> {
     }
 
     /**
-     * Fetches all entries from store and unmarshalls their JSON data back into raw record instances.
+     * Fetches all entries from store and unmarshalls their JSON data back into raw record instances. This
+     * buffers the whole bucket, so prefer scan() for anything but small stores.
      */
     public List<T> values() {
+        try (var records = scan()) {
+            return records.toList();
+        }
+    }
+
+    /**
+     * Streams every record in the store using the default batch size.
+     *
+     * @see #scan(int)
+     */
+    public Stream<T> scan() {
+        return scan(DEFAULT_SCAN_BATCH_SIZE);
+    }
+
+    /**
+     * Streams every record in the store without listing the keys first or fetching records one at a time. Under
+     * the hood, a k/v bucket is just a stream with one subject per key, so we point an ordered consumer at the
+     * latest message for each subject and pull those down in batches. Deleted/purged keys are skipped.
+     * <p>
+     * Only one batch is held in memory at a time, and nothing more is fetched once you stop consuming the stream
+     * (e.g. after a findFirst() or limit()). Close the stream when you're done with it so the consumer is
+     * cleaned up right away rather than when the server notices it's idle.
+     * <p>
+     * For a sharded store, every shard is scanned at the same time on its own thread and the records are merged
+     * as they arrive, so records come back in no particular order.
+     *
+     * @param batchSize The most records to pull from NATS per round trip.
+     */
+    public Stream<T> scan(int batchSize) {
+        var scanners = new ArrayList<Scanner>(shards.size());
+        for (var shard : shards) {
+            scanners.add(openScanner(jetStream, shard.bucketName, batchSize));
+        }
+
+        Iterator<Message> messages;
+        Runnable close;
+        if (scanners.size() == 1) {
+            var scanner = scanners.get(0);
+            messages = scanner;
+            close = scanner::close;
+        }
+        else {
+            var merged = new MergedScan(scanners, batchSize);
+            messages = merged;
+            close = merged::close;
+        }
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(messages, ORDERED | NONNULL), false)
+            .onClose(close)
+            .map(msg -> {
+                var key = keyOf(msg);
+                var record = decodeCache.decode(key, msg.metaData().streamSequence(), msg.getData());
+                return isStray(key, record) ? null : record;
+            })
+            .filter(Objects::nonNull);
+    }
+
+    /**
+     * Points an ordered consumer at the latest message for every key in the bucket. This hands back the raw
+     * messages so the Resharder can copy entries around without caring what type of record is in them.
+     */
+    static Scanner openScanner(JetStream jetStream, String bucketName, int batchSize) {
         try {
-            // Again, this is terribly inefficient, but for our 3-record database it's fine.
-            return keyValue.keys().stream()
-                .map(this::get)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .distinct() // some repos list the same record under multiple keys, so only show unique records
-                .toList();
+            var consumer = jetStream
+                .getStreamContext("KV_" + bucketName)
+                .createOrderedConsumer(new OrderedConsumerConfiguration()
+                    .filterSubject("$KV." + bucketName + ".>")
+                    .deliverPolicy(DeliverPolicy.LastPerSubject));
+
+            return new Scanner(consumer, batchSize);
         }
-        catch (IOException | JetStreamApiException | InterruptedException e) {
+        catch (IOException | JetStreamApiException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Pulls the key out of a "$KV.{bucket}.{key}" subject. Bucket names can't contain dots, so the key is
+     * everything after the second one.
+     */
+    static String keyOf(Message msg) {
+        var subject = msg.getSubject();
+        return subject.substring(subject.indexOf('.', 4) + 1);
+    }
+
     /**
      * Looks up a single record from the key/value store.
      *
@@ -80,10 +491,38 @@ public class KeyValueStore<T> {
      * @return An Optional wrapping the record. This will be a non-null, but empty if the record doesn't exist.
      */
     public Optional<T> get(String id) {
+        if (!hasText(id)) {
+            return Optional.empty();
+        }
+
+        var buffer = writeBehind;
+        var pending = buffer == null ? null : buffer.pending.get(id);
+        if (pending != null) {
+            return Optional.of(unmarshalJSON(pending.json, entityType));
+        }
+
+        var cache = nearCache;
+        if (cache != null) {
+            var cached = cache.get(id);
+            if (cached.isPresent()) {
+                return cached.get();
+            }
+        }
+
         try {
-            return Optional.ofNullable(hasText(id) ? keyValue.get(id) : null)
-                .map(entry -> entry.getValueAsString())
-                .map(json -> unmarshalJSON(json, entityType));
+            var entry = shardFor(id).keyValue.get(id);
+            if (entry == null) {
+                return Optional.empty();
+            }
+
+            var record = decode(entry);
+            if (isStray(id, record)) {
+                return Optional.empty();
+            }
+            if (cache != null) {
+                cache.put(id, entry.getRevision(), record);
+            }
+            return Optional.of(record);
         }
         catch (IOException | JetStreamApiException e) {
             throw new RuntimeException(e);
@@ -97,12 +536,597 @@ public class KeyValueStore<T> {
      * @param record The raw record you want to write to the store.
      */
     public void put(String id, T record) {
+        var buffer = writeBehind;
+        if (buffer != null) {
+            buffer.add(id, record);
+            return;
+        }
+
+        try {
+            var previous = peekCached(id);
+            var revision = shardFor(id).keyValue.put(id, marshalJSON(record));
+            afterWrite(id, revision, previous, record);
+        }
+        catch (IOException | JetStreamApiException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Atomically updates a record without any locks. We read the record along with its revision, let your function
+     * modify it, and then write it back only if nobody else has written to it since we read it. If someone beat us
+     * to it, we back off for a few (random) milliseconds, re-read, and try again. Your function may run several
+     * times, so it shouldn't have side effects other than changing the record it's given.
+     * <p>
+     * Like Map.compute(), your function receives null if the record doesn't exist yet, and returning null means
+     * "don't write anything".
+     *
+     * @param id     The id of the record to update.
+     * @param update Receives the current record (or null) and returns the new one (or null to leave it as-is).
+     * @return The record we wrote, or empty if the function decided not to write anything.
+     *
+     * @throws ConcurrentModificationException If we lost the race MAX_COMPUTE_ATTEMPTS times in a row.
+     */
+    public Optional<T> compute(String id, UnaryOperator<T> update) {
+        var buffer = writeBehind;
+        if (buffer != null) {
+            buffer.flush(id);
+        }
+
+        var keyValue = shardFor(id).keyValue;
         try {
-            keyValue.put(id, marshalJSON(record));
+            for (int attempt = 1; attempt <= MAX_COMPUTE_ATTEMPTS; attempt++) {
+                var entry = keyValue.get(id);
+                var current = entry == null ? null : decode(entry);
+                var updated = update.apply(current);
+                if (updated == null) {
+                    computeMetrics.record(attempt, false);
+                    return Optional.empty();
+                }
+
+                try {
+                    var json = marshalJSON(updated);
+                    var revision = entry == null
+                        ? keyValue.create(id, json.getBytes(UTF_8))
+                        : keyValue.update(id, json, entry.getRevision());
+
+                    afterWrite(id, revision, current, updated);
+                    computeMetrics.record(attempt, true);
+                    return Optional.of(updated);
+                }
+                catch (JetStreamApiException e) {
+                    if (e.getApiErrorCode() != WRONG_LAST_SEQUENCE) {
+                        throw e;
+                    }
+                    Thread.sleep(ThreadLocalRandom.current().nextLong(1, 5L << Math.min(attempt, 5)));
+                }
+            }
         }
         catch (IOException | JetStreamApiException e) {
             throw new RuntimeException(e);
         }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        computeMetrics.recordExhausted(MAX_COMPUTE_ATTEMPTS);
+        throw new ConcurrentModificationException("Too much contention updating record: " + bucketName + "/" + id);
+    }
+
+    /**
+     * Decodes the entry's JSON, skipping the parse if we've already decoded this exact revision.
+     */
+    private T decode(KeyValueEntry entry) {
+        return decodeCache.decode(entry.getKey(), entry.getRevision(), entry.getValue());
+    }
+
+    /**
+     * Whether this is a leftover copy of a record stored under something other than its own id (see keyedBy()).
+     */
+    private boolean isStray(String key, T record) {
+        var id = idOf;
+        return id != null && !key.equals(id.apply(record));
+    }
+
+    /**
+     * The record as the near cache last saw it, or null if we're not caching it (or not caching at all).
+     */
+    private T peekCached(String id) {
+        var cache = nearCache;
+        return cache == null ? null : cache.peek(id);
+    }
+
+    /**
+     * Once a record has been written, keep its secondary indexes pointing at it and let the near cache know. Our
+     * own writes don't have to wait for the watcher to come back around to be visible locally.
+     *
+     * @param previous The record as it was before this write, if we know it. Pointers for values that didn't
+     *                 change are already there, so we only rewrite them when we can't tell.
+     */
+    private void afterWrite(String id, long revision, T previous, T record) throws IOException, JetStreamApiException {
+        for (var index : indexes.entrySet()) {
+            var value = indexValueIfChanged(index.getValue(), previous, record);
+            if (value != null) {
+                indexKeyValue.put(index.getKey() + "." + value, id);
+            }
+        }
+
+        var cache = nearCache;
+        if (cache != null) {
+            cache.put(id, revision, record);
+        }
+    }
+
+    /**
+     * The record's value for this index if its pointer needs writing, or null if it doesn't: either the record
+     * isn't indexed or the value is the same one the previous version already pointed at.
+     */
+    private String indexValueIfChanged(Function<T, String> indexKey, T previous, T record) {
+        var value = indexKey.apply(record);
+        if (!hasText(value)) {
+            return null;
+        }
+        return previous != null && value.equals(indexKey.apply(previous)) ? null : value;
+    }
+
+    /**
+     * Publishes the record straight to its "$KV.{bucket}.{key}" subject (which is all KeyValue.put() does under
+     * the hood) without waiting for the ack. Once it's acked, the secondary index pointers are published the same
+     * way. The returned future completes once the record and all of its pointers are stored.
+     */
+    private CompletableFuture<Void> putAsync(String id, T record, byte[] json) {
+        // Grab what the record looked like before this write now, not once it's acked. By then our own watcher
+        // may have already cached the new version, and we'd think the indexed values never changed.
+        var previous = peekCached(id);
+        return jetStream.publishAsync("$KV." + shardFor(id).bucketName + "." + id, json).thenCompose(ack -> {
+            var cache = nearCache;
+            if (cache != null) {
+                cache.put(id, ack.getSeqno(), record);
+            }
+
+            var pointers = new ArrayList<CompletableFuture<?>>(indexes.size());
+            for (var index : indexes.entrySet()) {
+                var value = indexValueIfChanged(index.getValue(), previous, record);
+                if (value != null) {
+                    var subject = "$KV." + bucketName + "-index." + index.getKey() + "." + value;
+                    pointers.add(jetStream.publishAsync(subject, id.getBytes(UTF_8)));
+                }
+            }
+            return CompletableFuture.allOf(pointers.toArray(CompletableFuture[]::new));
+        });
+    }
+
+    /**
+     * Bulk-writes a whole bunch of records as fast as NATS will take them. Records are published asynchronously
+     * (see writeBehind() for details) with up to maxInFlight writes waiting on acks at any one time, so we're
+     * never more than a window's worth of records ahead of the server and memory stays flat no matter how many
+     * records you load. This blocks until every record has been acked.
+     *
+     * @param records     The records to write. This is consumed lazily, so it can be generated on the fly.
+     * @param idOf        Extracts the key to store each record under.
+     * @param maxInFlight The most writes to have outstanding at once.
+     * @return The number of records written.
+     */
+    public long putAll(Stream<T> records, Function<T, String> idOf, int maxInFlight) {
+        var window = new Semaphore(maxInFlight);
+        var failure = new AtomicReference<Throwable>();
+        var written = new LongAdder();
+
+        try (records) {
+            var iterator = records.iterator();
+            while (iterator.hasNext() && failure.get() == null) {
+                var record = iterator.next();
+                window.acquire();
+                putAsync(idOf.apply(record), record, marshalJSON(record).getBytes(UTF_8)).whenComplete((ack, err) -> {
+                    if (err != null) {
+                        failure.compareAndSet(null, err);
+                    }
+                    else {
+                        written.increment();
+                    }
+                    window.release();
+                });
+            }
+
+            // Wait for the stragglers by taking back every permit.
+            window.acquire(maxInFlight);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+
+        if (failure.get() != null) {
+            throw new RuntimeException("Bulk write failed after " + written.sum() + " records: " + bucketName, failure.get());
+        }
+        return written.sum();
+    }
+
+    /**
+     * The buffer behind write-behind mode. Pending writes are keyed by record id, which is what makes a later
+     * write to the same record replace the earlier one rather than queue up behind it. A write stays in the
+     * buffer until JetStream acks it (not just until we publish it), so reads through this store keep seeing it
+     * while it's in flight.
+     */
+    private class WriteBehind {
+        private static final int MAX_FLUSH_ROUNDS = 5;
+
+        private final Map<String, PendingWrite<T>> pending = new ConcurrentHashMap<>();
+        private final ScheduledExecutorService flusher;
+
+        private WriteBehind(Duration window) {
+            this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "write-behind-" + bucketName);
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::publishPending, window.toMillis(), window.toMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Buffers the record. We marshal it right away so that changes the caller makes after put() returns
+         * don't sneak into the write. If this replaces a write that hasn't made it yet, anybody waiting on the old
+         * one waits for this one instead, since it's the one that's actually going to land.
+         */
+        private void add(String id, T record) {
+            var json = marshalJSON(record);
+            var write = new PendingWrite<>(json, unmarshalJSON(json, entityType));
+            var replaced = pending.put(id, write);
+            if (replaced != null) {
+                write.stored.whenComplete((ok, err) -> replaced.stored.complete(null));
+            }
+        }
+
+        /**
+         * Publishes everything that's currently buffered (and not already on its way) without waiting for acks.
+         */
+        private void publishPending() {
+            pending.forEach(this::publish);
+        }
+
+        /**
+         * Publishes a single buffered write unless it's already in flight, and returns the future for that
+         * attempt, which completes once we've heard back (either way). Once it's acked, the write leaves the
+         * buffer, but only if it's still the newest write for that record. If it fails, it's retried on the next
+         * flush, but again, only if nothing newer has been buffered since; otherwise the newer write wins and
+         * retrying the old one would just clobber it.
+         */
+        private CompletableFuture<Void> publish(String id, PendingWrite<T> write) {
+            // Swapping in the new attempt is what claims the write, so whoever loses the race gets a future for
+            // the attempt that's actually in flight rather than nothing at all.
+            var previous = write.attempt.get();
+            if (!previous.isDone()) {
+                return previous;
+            }
+            var attempt = new CompletableFuture<Void>();
+            if (!write.attempt.compareAndSet(previous, attempt)) {
+                return write.attempt.get();
+            }
+
+            try {
+                putAsync(id, write.record, write.json.getBytes(UTF_8)).whenComplete((ack, err) -> {
+                    afterPublish(id, write, err);
+                    attempt.complete(null);
+                });
+            }
+            catch (RuntimeException e) {
+                afterPublish(id, write, e);
+                attempt.complete(null);
+            }
+            return attempt;
+        }
+
+        private void afterPublish(String id, PendingWrite<T> write, Throwable err) {
+            if (err == null) {
+                pending.remove(id, write);
+                write.stored.complete(null);
+            }
+            else if (pending.get(id) == write) {
+                logger.error(err, "Write-behind failed; will retry: %s/%s", bucketName, id);
+            }
+            else {
+                logger.error(err, "Write-behind failed, but a newer write replaced it: %s/%s", bucketName, id);
+            }
+        }
+
+        /**
+         * Blocks until every write that was buffered when we were called has been acked (or replaced by a newer
+         * write to the same record that has been). Writes other threads buffer while we wait aren't our problem;
+         * the next flush will get them. A record whose write keeps failing gets a few attempts before we give up.
+         */
+        private void flush() {
+            var writes = new ArrayList<>(pending.entrySet());
+            publishPending();
+            for (var write : writes) {
+                await(write.getKey(), write.getValue());
+            }
+        }
+
+        /**
+         * Like flush(), but only for one record, and it doesn't return until nothing is buffered or in flight for
+         * it. compute() uses this so that a blind write-behind publish can't land on top of its revision-checked
+         * update.
+         */
+        private void flush(String id) {
+            for (int round = 0; round < MAX_FLUSH_ROUNDS; round++) {
+                var write = pending.get(id);
+                if (write == null) {
+                    return;
+                }
+                publish(id, write).join();
+            }
+            throw new IllegalStateException("Unable to flush write-behind buffer: " + bucketName + "/" + id);
+        }
+
+        /**
+         * Waits for this particular write to be stored, publishing (or re-publishing) the newest write for the
+         * record as needed.
+         */
+        private void await(String id, PendingWrite<T> write) {
+            for (int round = 0; round < MAX_FLUSH_ROUNDS && !write.stored.isDone(); round++) {
+                var newest = pending.get(id);
+                if (newest != null) {
+                    publish(id, newest).join();
+                }
+            }
+            if (!write.stored.isDone()) {
+                throw new IllegalStateException("Unable to flush write-behind buffer: " + bucketName + "/" + id);
+            }
+        }
+    }
+
+    /**
+     * A buffered write. 'attempt' is the most recent publish of it (already complete if it isn't in flight),
+     * and 'stored' completes once the write (or one that replaced it) has been acked.
+     */
+    private static class PendingWrite<T> {
+        private final String json;
+        private final T record;
+        private final AtomicReference<CompletableFuture<Void>> attempt = new AtomicReference<>(CompletableFuture.completedFuture(null));
+        private final CompletableFuture<Void> stored = new CompletableFuture<>();
+
+        private PendingWrite(String json, T record) {
+            this.json = json;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Walks the ordered consumer one fetched batch at a time. The server tells us how many messages are still
+     * pending with each one, so we know we've reached the end without waiting for an empty fetch to time out.
+     */
+    static class Scanner implements Iterator<Message> {
+        private final OrderedConsumerContext consumer;
+        private final FetchConsumeOptions fetchOptions;
+        private FetchConsumer fetch;
+        private Message next;
+        private boolean done;
+
+        private Scanner(OrderedConsumerContext consumer, int batchSize) {
+            this.consumer = consumer;
+            this.fetchOptions = FetchConsumeOptions.builder()
+                .maxMessages(batchSize)
+                .expiresIn(1000)
+                .build();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null && !done) {
+                next = advance();
+            }
+            return next != null;
+        }
+
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var msg = next;
+            next = null;
+            return msg;
+        }
+
+        private Message advance() {
+            try {
+                boolean receivedAny = true;
+                while (!done) {
+                    if (fetch == null) {
+                        fetch = consumer.fetch(fetchOptions);
+                        receivedAny = false;
+                    }
+
+                    var msg = fetch.nextMessage();
+                    if (msg == null) {
+                        // This batch is used up. If it was empty to begin with, there's nothing left to read.
+                        closeFetch();
+                        done = !receivedAny;
+                        continue;
+                    }
+
+                    receivedAny = true;
+                    if (msg.metaData().pendingCount() == 0) {
+                        done = true;
+                        closeFetch();
+                    }
+                    if (!isDeleted(msg)) {
+                        return msg;
+                    }
+                }
+                return null;
+            }
+            catch (Exception e) {
+                close();
+                throw new RuntimeException(e);
+            }
+        }
+
+        private boolean isDeleted(Message msg) {
+            var operation = msg.hasHeaders() ? msg.getHeaders().getFirst("KV-Operation") : null;
+            return "DEL".equals(operation) || "PURGE".equals(operation);
+        }
+
+        private void closeFetch() throws Exception {
+            if (fetch != null) {
+                fetch.close();
+                fetch = null;
+            }
+        }
+
+        void close() {
+            done = true;
+            try {
+                closeFetch();
+            }
+            catch (Exception e) {
+                // Nothing left to do with it anyway.
+            }
+        }
+    }
+
+    /**
+     * Scans every shard at once. Each shard's Scanner runs on its own thread and drops its messages into one
+     * shared queue, which we drain as the caller consumes the stream. The queue is bounded, so if the caller
+     * stops reading, the shard threads stop fetching too rather than buffering whole buckets in memory.
+     */
+    private static class MergedScan implements Iterator<Message> {
+        private static final Object END_OF_SHARD = new Object();
+
+        private final BlockingQueue<Object> queue;
+        private final List<Thread> threads = new ArrayList<>();
+        private volatile boolean closed;
+        private int shardsRemaining;
+        private Message next;
+
+        private MergedScan(List<Scanner> scanners, int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.shardsRemaining = scanners.size();
+            for (var scanner : scanners) {
+                var thread = new Thread(() -> drain(scanner), "kv-scan");
+                thread.setDaemon(true);
+                threads.add(thread);
+            }
+            threads.forEach(Thread::start);
+        }
+
+        private void drain(Scanner scanner) {
+            try {
+                while (scanner.hasNext()) {
+                    deliver(scanner.next());
+                }
+                deliver(END_OF_SHARD);
+            }
+            catch (RuntimeException e) {
+                deliver(e);
+            }
+            finally {
+                scanner.close();
+            }
+        }
+
+        /**
+         * Waits for room in the queue, giving up if the scan gets closed in the meantime.
+         */
+        private void deliver(Object item) {
+            try {
+                while (!closed && !queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    // Keep waiting for the caller to catch up.
+                }
+            }
+            catch (InterruptedException e) {
+                // The scan was closed before we got to the end of the shard.
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (next == null && shardsRemaining > 0) {
+                    var item = queue.take();
+                    if (item == END_OF_SHARD) {
+                        shardsRemaining--;
+                    }
+                    else if (item instanceof RuntimeException e) {
+                        close();
+                        throw e;
+                    }
+                    else {
+                        next = (Message) item;
+                    }
+                }
+                return next != null;
+            }
+            catch (InterruptedException e) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var msg = next;
+            next = null;
+            return msg;
+        }
+
+        private void close() {
+            closed = true;
+            shardsRemaining = 0;
+            threads.forEach(Thread::interrupt);
+        }
+    }
+
+    /**
+     * One of the physical buckets that make up this store.
+     */
+    private static class Shard {
+        private final String bucketName;
+        private final KeyValue keyValue;
+
+        private Shard(String bucketName, KeyValue keyValue) {
+            this.bucketName = bucketName;
+            this.keyValue = keyValue;
+        }
+    }
+
+    /**
+     * Applies every put/delete made to the bucket (by anyone) to the near cache. We only bother decoding
+     * updates for records we're actually caching and don't already have at that revision; for everything else
+     * we just note the revision, so a read that's still in flight can't cache something older.
+     */
+    private class NearCacheUpdater implements KeyValueWatcher {
+        private final NearCache<T> cache;
+
+        private NearCacheUpdater(NearCache<T> cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        public void watch(KeyValueEntry entry) {
+            var key = entry.getKey();
+            if (entry.getOperation() != KeyValueOperation.PUT) {
+                cache.remove(key, entry.getRevision());
+                return;
+            }
+
+            var cachedRevision = cache.revision(key);
+            if (cachedRevision == 0) {
+                cache.watched(key, entry.getRevision());
+            }
+            else if (cachedRevision < entry.getRevision()) {
+                cache.refresh(key, entry.getRevision(), decode(entry));
+            }
+        }
+
+        @Override
+        public void endOfData() {
+        }
     }
 
     /**
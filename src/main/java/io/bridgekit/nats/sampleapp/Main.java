@@ -1,11 +1,14 @@
 package io.bridgekit.nats.sampleapp;
 
-import static io.bridgekit.nats.Utils.asString;
+
 import static io.bridgekit.nats.Utils.closeOnShutdown;
 import static io.bridgekit.nats.Utils.firstArgOptional;
 import static io.bridgekit.nats.Utils.unmarshalJSON;
+import static java.time.Duration.ofMinutes;
+import static java.time.Duration.ofSeconds;
 import io.bridgekit.nats.EnterListener;
 import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.sampleapp.EventGateway.PublishMode;
 import io.bridgekit.nats.sampleapp.analytics.AnalyticsService;
 import io.bridgekit.nats.sampleapp.analytics.AnalyticsService.TrackEventRequest;
 import io.bridgekit.nats.sampleapp.analytics.AnalyticsServiceHandler;
@@ -14,6 +17,7 @@ import io.bridgekit.nats.sampleapp.notifications.NotificationService.OrderNotifi
 import io.bridgekit.nats.sampleapp.notifications.NotificationServiceHandler;
 import io.bridgekit.nats.sampleapp.orders.OrderService;
 import io.bridgekit.nats.sampleapp.orders.OrderService.CancelOrderRequest;
+import io.bridgekit.nats.sampleapp.orders.OrderService.Order;
 import io.bridgekit.nats.sampleapp.orders.OrderService.GetOrderRequest;
 import io.bridgekit.nats.sampleapp.orders.OrderService.PlaceOrderRequest;
 import io.bridgekit.nats.sampleapp.orders.OrderService.SearchOrdersRequest;
@@ -24,6 +28,7 @@ import io.bridgekit.nats.sampleapp.payments.PaymentService.ChargebackRequest;
 import io.bridgekit.nats.sampleapp.payments.PaymentService.GetTransactionRequest;
 import io.bridgekit.nats.sampleapp.payments.PaymentService.RefundRequest;
 import io.bridgekit.nats.sampleapp.payments.PaymentService.SearchTransactionsCriteria;
+import io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction;
 import io.bridgekit.nats.sampleapp.payments.PaymentServiceHandler;
 
 /**
@@ -58,12 +63,40 @@ public class Main {
     private static final Logger logger = Logger.instance(Main.class);
 
     public static void main(String[] args) throws Exception {
+        // The repos and the event gateway all share connections from this registry. Give events their own
+        // connection so a burst of publishes doesn't queue up in front of k/v lookups, and let both buffer
+        // a bit more than the defaults since we pipeline our publishes.
+        NatsConnections.shared()
+            .separateTrafficClasses(true)
+            .bufferSize(256 * 1024)
+            .reconnectBufferSize(16 * 1024 * 1024)
+            .pingInterval(ofSeconds(30))
+            .maxPendingMessages(10_000);
+
         // Some service methods are invoked via the API; others through event consumption. Both, however, need
         // access to the NATS broker. Event-based routes need it to register consumers, and all services need
         // it to be able to publish events. The "publish" use-case is why all service handlers accept the
         // publisher as a dependency.
-        var broker = new EventGateway("localhost", 4222);
-        var publisher = broker.publisher();
+        //
+        // Order and payment events drive the rest of the workflow, so they stay SYNC: the HTTP response doesn't go
+        // out until JetStream has acked the event, and a failed publish fails the request rather than getting lost
+        // in a log. Notifications only feed analytics, so we don't even bother asking for an ack on those.
+        //
+        // Orders and transactions make up the bulk of our event traffic, so they're written with the compact binary
+        // codec instead of JSON. Schema ids are part of the wire format, so never change/reuse them.
+        //
+        // Telling the gateway how to identify each entity lets JetStream throw away duplicate publishes of the
+        // same transition (e.g. "order.shipped" for order 123) when a client retries a request.
+        var broker = new EventGateway("localhost", 4222)
+            .codec(new BinaryEventCodec()
+                .register(1, Order.class, "orderID", "itemID", "itemName", "quantity", "price", "total", "status", "trackingNumber")
+                .register(2, Transaction.class, "transactionID", "orderID", "total", "status", "processorID", "processorToken"))
+            .messageIDs(Order.class, order -> order.orderID)
+            .messageIDs(Transaction.class, transaction -> transaction.transactionID)
+            .messageIDs(OrderNotificationRequest.class, req -> req.orderID);
+        var publisher = broker.asyncPublisher(256)
+            .mode("notification.orderPlaced", PublishMode.FIRE_AND_FORGET)
+            .mode("notification.orderCancelled", PublishMode.FIRE_AND_FORGET);
 
         // Raw business logic service instances that are all oblivious to request/response transport.
         var services = new Services();
@@ -96,6 +129,10 @@ public class Main {
         logger.info("Press ENTER to exit.");
         new EnterListener().awaitPressed();
 
+        broker.batchMetrics().values().forEach(metrics -> logger.info("%s", metrics));
+        logger.info("Duplicate events skipped: %d", broker.duplicatesRejected());
+        NatsConnections.shared().statistics().forEach((name, stats) -> logger.info("%s: %d msgs in (%d bytes), %d msgs out (%d bytes), %d reconnects",
+            name, stats.getInMsgs(), stats.getInBytes(), stats.getOutMsgs(), stats.getOutBytes(), stats.getReconnects()));
         logger.info("Bye, bye! I miss you already!");
         System.exit(0); // Javalin prevents shutdown at end of main, so we need to explicitly quit.
     }
@@ -107,7 +144,13 @@ public class Main {
      * @param services Our collection of raw business-logic-only service handlers that do the *real* work.
      */
     private static void startApiGateway(Services services) {
+        // Every caller gets 600 calls a minute across all API instances. The demo API has no authentication, so
+        // the client's address is the only identity a caller can't just make up; keying on a header like
+        // X-Account-ID would let anyone dodge the limit (new id every request) or burn through someone else's.
+        // Once there's real auth, key this on the authenticated account instead.
+        var rateLimiter = new RateLimiter("api-rate-limits", 600, ofMinutes(1));
         var api = new ApiGateway("localhost", 7222)
+            .rateLimit(rateLimiter, ctx -> ctx.ip())
             .GET("/order", ctx -> {
                 var req = unmarshalJSON(ctx.body(), SearchOrdersRequest.class);
                 return services.orderService.searchOrders(req);
@@ -132,7 +175,7 @@ public class Main {
                 return services.orderService.shipOrder(req);
             })
             .GET("/transaction", ctx -> {
-                var req = new SearchTransactionsCriteria();
+                var req = unmarshalJSON(ctx.body(), SearchTransactionsCriteria.class);
                 return services.paymentService.searchTransactions(req);
             })
             .GET("/transaction/{transactionID}", ctx -> {
@@ -150,6 +193,17 @@ public class Main {
         closeOnShutdown(api);
     }
 
+    /**
+     * All of our event streams look the same: a small, file-backed log whose duplicate window lines up with
+     * how long the gateway remembers the message ids it has already handled.
+     */
+    private static StreamSpec eventStream(String streamName, String subjectPattern) {
+        return StreamSpec.named(streamName)
+            .subjects(subjectPattern)
+            .maxMessages(10)
+            .duplicateWindow(ofMinutes(2));
+    }
+
     /**
      * Sets up the NATS event streams and consumers that enable services to asynchronously listen for
      * events elsewhere in the system to trigger the next task in our ordering workflows.
@@ -158,65 +212,73 @@ public class Main {
      * @param gateway  Our managed connection to the NATS message broker.
      */
     private static void startEventGateway(Services services, EventGateway gateway) {
-        gateway.stream("EVENT_GATEWAY_ORDERS", "order.>")
+        gateway.stream(eventStream("EVENT_GATEWAY_ORDERS", "order.>"))
+            //
+            // All of the order workflow routes run in the same process, so let them share a single consumer rather
+            // than having NATS deliver every "order.cancelled" event twice. Refunds talk to the payment processor,
+            // which can be slow, so work on several orders at once. Events for the same order are still handled in order.
+            //
+            .router("group_orders_router", byOrderID(gateway, 8))
             //
             // Send confirmation email when an order is placed.
             //
-            .on("order.placed", "group_notification_order_placed", msg -> {
-                var req = unmarshalJSON(msg.getData(), OrderNotificationRequest.class);
+            .on("order.placed", "group_notification_order_placed", OrderNotificationRequest.class, req -> {
                 services.notificationService.sendOrderPlacedMessage(req);
             })
             //
             // Send confirmation email when an order is cancelled.
             //
-            .on("order.cancelled", "group_notification_order_cancelled", msg -> {
-                var req = unmarshalJSON(msg.getData(), OrderNotificationRequest.class);
+            .on("order.cancelled", "group_notification_order_cancelled", OrderNotificationRequest.class, req -> {
                 services.notificationService.sendOrderCancelledMessage(req);
             })
             //
             // Refund the payment when an order is cancelled.
             //
-            .on("order.cancelled", "group_payment_refund", msg -> {
-                var req = unmarshalJSON(msg.getData(), RefundRequest.class);
+            .on("order.cancelled", "group_payment_refund", RefundRequest.class, req -> {
                 services.paymentService.refund(req);
             })
             //
-            // Everything goes to the analytics service.
+            // Everything goes to the analytics service. It's high volume, so pull it in big batches.
             //
-            .on("order.>", "group_analytics_trackEvent", msg -> {
-                var req = new TrackEventRequest();
-                req.event = msg.getSubject();
-                req.json = asString(msg.getData());
-                services.analyticsService.trackEvent(req);
+            .onBatch("order.>", "group_analytics_trackEvent", 100, ofSeconds(1), batch -> {
+                for (var msg : batch) {
+                    var req = new TrackEventRequest();
+                    req.event = msg.getSubject();
+                    req.json = gateway.decodeAsJSON(msg);
+                    services.analyticsService.trackEvent(req);
+                }
             });
 
-        gateway.stream("EVENT_GATEWAY_PAYMENTS", "payment.>")
+        gateway.stream(eventStream("EVENT_GATEWAY_PAYMENTS", "payment.>"))
             //
             // When CC company notifies payment service of a chargeback, cancel the order.
             //
-            .on("payment.chargeback", "group_order_cancel", msg -> {
-                var req = unmarshalJSON(msg.getData(), CancelOrderRequest.class);
+            .on("payment.chargeback", "group_order_cancel", CancelOrderRequest.class, byOrderID(gateway, 4), req -> {
                 services.orderService.cancelOrder(req);
             })
             //
-            // Everything goes to the analytics service.
+            // Everything goes to the analytics service. It's high volume, so pull it in big batches.
             //
-            .on("payment.>", "group_analytics_payments", msg -> {
-                var req = new TrackEventRequest();
-                req.event = msg.getSubject();
-                req.json = asString(msg.getData());
-                services.analyticsService.trackEvent(req);
+            .onBatch("payment.>", "group_analytics_payments", 100, ofSeconds(1), batch -> {
+                for (var msg : batch) {
+                    var req = new TrackEventRequest();
+                    req.event = msg.getSubject();
+                    req.json = gateway.decodeAsJSON(msg);
+                    services.analyticsService.trackEvent(req);
+                }
             });
 
-        gateway.stream("EVENT_GATEWAY_NOTIFICATIONS", "notification.>")
+        gateway.stream(eventStream("EVENT_GATEWAY_NOTIFICATIONS", "notification.>"))
             //
-            // Everything goes to the analytics service.
+            // Everything goes to the analytics service. It's high volume, so pull it in big batches.
             //
-            .on("notification.>", "group_analytics_notifications", msg -> {
-                var req = new TrackEventRequest();
-                req.event = msg.getSubject();
-                req.json = asString(msg.getData());
-                services.analyticsService.trackEvent(req);
+            .onBatch("notification.>", "group_analytics_notifications", 100, ofSeconds(1), batch -> {
+                for (var msg : batch) {
+                    var req = new TrackEventRequest();
+                    req.event = msg.getSubject();
+                    req.json = gateway.decodeAsJSON(msg);
+                    services.analyticsService.trackEvent(req);
+                }
             });
 
         gateway.start();
@@ -224,6 +286,39 @@ public class Main {
         logger.info("Event gateway now running: %s", gateway.url());
     }
 
+    /**
+     * Route options that fan work out across a pool of threads while keeping all events for the same order
+     * in the order they were published. Failures are retried/dead-lettered using our standard policy, and we
+     * stop pulling from NATS if the pool falls too far behind rather than buffering a burst of events in memory.
+     */
+    private static RouteOptions byOrderID(EventGateway gateway, int threads) {
+        return RouteOptions.fixedPool(threads)
+            .partitionBy(msg -> gateway.decode(msg, OrderKey.class).orderID)
+            .retry(retryPolicy())
+            .batchSize(64)
+            .maxAckPending(512)
+            .ackWait(ofMinutes(1))
+            .highWaterMark(threads * 32);
+    }
+
+    /**
+     * The retry policy for routes that do real work: a handful of attempts spread out over a few minutes, and
+     * a heartbeat so that slow calls to the payment processor aren't mistaken for a dead consumer. Every route
+     * gets its own copy, since tweaking one route's policy (e.g. its heartbeat) shouldn't change everybody's.
+     */
+    private static RetryPolicy retryPolicy() {
+        return RetryPolicy.exponential(5, ofSeconds(1), ofMinutes(1))
+            .heartbeat(ofSeconds(10));
+    }
+
+    /**
+     * Just enough of an order/transaction payload to figure out which order it's about. Both codecs only
+     * bother to decode the one field, so this is cheap to pull out before handing the message to a lane.
+     */
+    private static class OrderKey {
+        public String orderID;
+    }
+
     /**
      * A simple data structure that wrangles the raw business-logic-only service handlers for all
      * services in the system. This keeps us from having to write methods that accept a boat-load
@@ -0,0 +1,208 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.Utils;
+import io.nats.client.Connection;
+import io.nats.client.Nats;
+import io.nats.client.Options;
+import io.nats.client.Statistics;
+
+/**
+ * Every NATS connection comes with its own socket, reader/writer threads, and buffers. There's no reason for
+ * each KeyValueStore (plus the EventGateway) to pay for its own, so this registry hands out shared,
+ * reference-counted connections instead. The underlying connection is opened the first time someone asks for
+ * it and closed once the last one to use it lets it go.
+ * <p>
+ * By default, everything in the process talks over a single connection per server. If you'd rather keep your
+ * chatty event traffic from sitting in front of your k/v lookups (or vice versa), turn on separate traffic
+ * classes, and each TrafficClass gets a connection of its own.
+ * <p>
+ * Tune it before anyone acquires a connection; changes don't affect connections that are already open.
+ */
+public class NatsConnections {
+    private static final NatsConnections SHARED = new NatsConnections();
+
+    /**
+     * The types of traffic we send to NATS. These only result in different connections when
+     * separateTrafficClasses() is turned on.
+     */
+    public enum TrafficClass {
+        KEY_VALUE,
+        EVENTS,
+    }
+
+    private final Logger logger = Logger.instance(NatsConnections.class);
+    private final Map<String, SharedEntry> connections = new LinkedHashMap<>();
+    private String defaultUrl = "nats://localhost:4222";
+    private boolean separateTrafficClasses = false;
+    private Integer bufferSize;
+    private Long reconnectBufferSize;
+    private Duration pingInterval;
+    private Integer maxPendingMessages;
+
+    /**
+     * The registry that the whole process shares.
+     */
+    public static NatsConnections shared() {
+        return SHARED;
+    }
+
+    /** The server that acquire() connects to when you don't give it one explicitly. */
+    public NatsConnections defaultUrl(String defaultUrl) {
+        this.defaultUrl = defaultUrl;
+        return this;
+    }
+
+    /** When true, each TrafficClass gets its own connection rather than sharing one per server. */
+    public NatsConnections separateTrafficClasses(boolean separateTrafficClasses) {
+        this.separateTrafficClasses = separateTrafficClasses;
+        return this;
+    }
+
+    /** The size (in bytes) of the socket read/write buffers. */
+    public NatsConnections bufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+        return this;
+    }
+
+    /** How many bytes of outgoing messages we'll hold onto while reconnecting before publishes start failing. */
+    public NatsConnections reconnectBufferSize(long reconnectBufferSize) {
+        this.reconnectBufferSize = reconnectBufferSize;
+        return this;
+    }
+
+    /** How often the client pings the server to make sure the connection is still alive. */
+    public NatsConnections pingInterval(Duration pingInterval) {
+        this.pingInterval = pingInterval;
+        return this;
+    }
+
+    /** The most outgoing messages we'll queue up before publishes start failing. */
+    public NatsConnections maxPendingMessages(int maxPendingMessages) {
+        this.maxPendingMessages = maxPendingMessages;
+        return this;
+    }
+
+    /**
+     * Borrows the shared connection to the default server for this type of traffic.
+     */
+    public Lease acquire(TrafficClass trafficClass) {
+        return acquire(defaultUrl, trafficClass);
+    }
+
+    /**
+     * Borrows the shared connection to the given server for this type of traffic, connecting if no one else
+     * is using it yet. Close the lease when you're done with it (rather than the connection itself).
+     */
+    public synchronized Lease acquire(String url, TrafficClass trafficClass) {
+        var name = separateTrafficClasses
+            ? url + "#" + trafficClass.name().toLowerCase()
+            : url;
+
+        var entry = connections.get(name);
+        if (entry == null) {
+            entry = new SharedEntry(name, connect(url, name));
+            connections.put(name, entry);
+        }
+        entry.references++;
+        return new Lease(entry);
+    }
+
+    /**
+     * Returns the jnats statistics (messages/bytes in and out, reconnects, etc) for each open connection.
+     */
+    public synchronized Map<String, Statistics> statistics() {
+        var statistics = new LinkedHashMap<String, Statistics>();
+        connections.forEach((name, entry) -> statistics.put(name, entry.connection.getStatistics()));
+        return Collections.unmodifiableMap(statistics);
+    }
+
+    private Connection connect(String url, String name) {
+        try {
+            var options = Options.builder()
+                .server(url)
+                .connectionName(name)
+                .maxReconnects(-1);
+
+            if (bufferSize != null) {
+                options.bufferSize(bufferSize);
+            }
+            if (reconnectBufferSize != null) {
+                options.reconnectBufferSize(reconnectBufferSize);
+            }
+            if (pingInterval != null) {
+                options.pingInterval(pingInterval);
+            }
+            if (maxPendingMessages != null) {
+                options.maxMessagesInOutgoingQueue(maxPendingMessages);
+            }
+
+            logger.info("Opening shared connection: %s", name);
+            return Nats.connect(options.build());
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private synchronized void release(SharedEntry entry) {
+        if (--entry.references > 0) {
+            return;
+        }
+        logger.info("Closing shared connection: %s", entry.name);
+        connections.remove(entry.name);
+        Utils.closeQuietly(entry.connection);
+    }
+
+    /**
+     * A handle on one of the shared connections. Closing it just tells the registry you're done; the connection
+     * stays open as long as anyone else is still using it.
+     */
+    public class Lease implements Closeable {
+        private final SharedEntry entry;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Lease(SharedEntry entry) {
+            this.entry = entry;
+        }
+
+        /**
+         * The underlying NATS connection. Don't close it yourself; close the lease instead.
+         */
+        public Connection connection() {
+            return entry.connection;
+        }
+
+        /**
+         * The jnats statistics for the underlying connection (which includes traffic from everyone sharing it).
+         */
+        public Statistics statistics() {
+            return entry.connection.getStatistics();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+
+    private static class SharedEntry {
+        private final String name;
+        private final Connection connection;
+        private int references;
+
+        private SharedEntry(String name, Connection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, in-process copy of the most recently used records in a KeyValueStore. Entries remember the k/v
+ * revision they came from, so a late response (or a late watch update) can never overwrite something newer.
+ * The store keeps it coherent with other instances by feeding it every put/delete from a bucket watcher.
+ * <p>
+ * Updates to records we aren't caching aren't thrown away completely: we remember the newest revision the
+ * watcher has seen for them (just the number, not the record). Otherwise a get() that read revision N could
+ * lose a race with the watcher delivering N+1, and we'd happily cache N and serve it forever. Those markers are
+ * bounded just like the records are, so a bucket full of keys we never read can't eat up our memory.
+ * <p>
+ * Records are cached already decoded, so a hit skips both the network round trip and the JSON parse. Since our
+ * records are mutable DTOs, callers always get their own copy; changing a record you got back doesn't change
+ * what's in the cache until you actually put() it.
+ */
+public class NearCache<T> {
+    private final int maxEntries;
+    private final Map<String, Cached<T>> entries;
+    private final Map<String, Long> watched;
+    private final RecordCopier<T> copier;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param entityType The type of record we're caching.
+     * @param maxEntries The most records to hold at once; the least recently used ones are evicted first.
+     */
+    public NearCache(Class<T> entityType, int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.copier = new RecordCopier<>(entityType);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached<T>> eldest) {
+                if (size() <= NearCache.this.maxEntries) {
+                    return false;
+                }
+                evictions.increment();
+                return true;
+            }
+        };
+        this.watched = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > NearCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks up the cached record. The outer Optional is empty on a cache miss; the inner one is empty when
+     * we know for a fact that the record has been deleted.
+     */
+    Optional<Optional<T>> get(String id) {
+        Cached<T> cached;
+        synchronized (entries) {
+            cached = entries.get(id);
+        }
+        if (cached == null) {
+            misses.increment();
+            return Optional.empty();
+        }
+        hits.increment();
+        return Optional.of(Optional.ofNullable(cached.value).map(copier::copy));
+    }
+
+    /**
+     * The cached record itself (or null), without copying it or counting it as a hit/miss. This is for peeking at
+     * what we had before a write; don't change what you get back.
+     */
+    T peek(String id) {
+        synchronized (entries) {
+            var cached = entries.get(id);
+            return cached == null ? null : cached.value;
+        }
+    }
+
+    /**
+     * Stores the record as of the given revision, unless we already have something newer. The cache keeps its
+     * own copy, so the caller is free to keep changing theirs.
+     */
+    void put(String id, long revision, T value) {
+        store(id, new Cached<>(revision, value == null ? null : copier.copy(value)), false);
+    }
+
+    /**
+     * Like put(), but only for records we're already caching. This is what keeps remote updates from flooding
+     * the cache with records this instance never reads.
+     */
+    void refresh(String id, long revision, T value) {
+        store(id, new Cached<>(revision, value), true);
+    }
+
+    /**
+     * Tells the cache that the record changed at this revision without giving it the record. We use this when
+     * the watcher sees an update to a record we're not caching: nothing gets cached, but a slower read that
+     * comes back with an older revision won't be cached either.
+     */
+    void watched(String id, long revision) {
+        synchronized (entries) {
+            if (!entries.containsKey(id)) {
+                watched.merge(id, revision, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Remembers that the record was deleted at this revision, so a slow read can't sneak the old value back in.
+     */
+    void remove(String id, long revision) {
+        store(id, new Cached<>(revision, null), false);
+    }
+
+    /**
+     * Returns the revision we have for this record, or 0 if we don't have it at all.
+     */
+    long revision(String id) {
+        synchronized (entries) {
+            var cached = entries.get(id);
+            return cached == null ? 0 : cached.revision;
+        }
+    }
+
+    private void store(String id, Cached<T> update, boolean onlyIfPresent) {
+        synchronized (entries) {
+            var existing = entries.get(id);
+            if (existing == null && onlyIfPresent) {
+                watched.merge(id, update.revision, Math::max);
+                return;
+            }
+            if (existing == null) {
+                var newestWatched = watched.remove(id);
+                if (newestWatched != null && newestWatched > update.revision) {
+                    // The watcher already saw something newer than this, so don't cache it (or forget that).
+                    watched.put(id, newestWatched);
+                    return;
+                }
+            }
+            if (existing == null || existing.revision < update.revision) {
+                entries.put(id, update);
+            }
+        }
+    }
+
+    /** The number of lookups answered from memory. */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /** The number of lookups that had to go to NATS. */
+    public long misses() {
+        return misses.sum();
+    }
+
+    /** The number of records pushed out to make room for more recently used ones. */
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /** The number of records (including deletion markers) currently cached. */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("NearCache[size:%d/%d, hits:%d, misses:%d, evictions:%d]",
+            size(), maxEntries, hits(), misses(), evictions());
+    }
+
+    private static class Cached<T> {
+        private final long revision;
+        private final T value;
+
+        private Cached(long revision, T value) {
+            this.revision = revision;
+            this.value = value;
+        }
+    }
+}
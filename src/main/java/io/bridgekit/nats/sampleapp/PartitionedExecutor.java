@@ -0,0 +1,142 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks in parallel on a backing executor while guaranteeing that tasks with the same partition key run
+ * one at a time, in the order they were submitted. Keys are hashed onto a fixed number of "lanes"; each lane
+ * is a serial queue, and different lanes run concurrently. This is the same trick Kafka uses with partitions,
+ * just in-process: all events for order "123" stay in order, but order "456" doesn't have to wait behind them.
+ * <p>
+ * Each lane holds a limited number of waiting tasks. Once a lane is full, execute() blocks until that lane
+ * catches up, so a slow key pushes back on whoever is submitting (i.e. the NATS dispatcher) rather than piling
+ * up an unbounded backlog in memory.
+ */
+public class PartitionedExecutor implements AutoCloseable {
+    /**
+     * How many tasks a lane can hold (not counting the one it's running) unless you say otherwise.
+     */
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    private final ExecutorService executor;
+    private final int laneCapacity;
+    private final Lane[] lanes;
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    /**
+     * @param executor The thread pool that actually runs the tasks. This takes ownership and shuts it down on close().
+     * @param numLanes How many independent serial lanes to hash keys onto (i.e. the max parallelism).
+     */
+    public PartitionedExecutor(ExecutorService executor, int numLanes) {
+        this(executor, numLanes, DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param executor     The thread pool that actually runs the tasks. This takes ownership and shuts it down on close().
+     * @param numLanes     How many independent serial lanes to hash keys onto (i.e. the max parallelism).
+     * @param laneCapacity How many tasks can be waiting in a lane before execute() blocks.
+     */
+    public PartitionedExecutor(ExecutorService executor, int numLanes, int laneCapacity) {
+        if (numLanes < 1) {
+            throw new IllegalArgumentException("Need at least one lane: " + numLanes);
+        }
+        if (laneCapacity < 1) {
+            throw new IllegalArgumentException("Lanes need room for at least one task: " + laneCapacity);
+        }
+
+        this.executor = executor;
+        this.laneCapacity = laneCapacity;
+        this.lanes = new Lane[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Queues the task on the lane that owns this key. Tasks with a null key have no ordering requirements,
+     * so they're spread round-robin across all lanes. If the lane is full, this waits for room.
+     *
+     * @throws RejectedExecutionException If we've been closed (or interrupted while waiting for room).
+     */
+    public void execute(String key, Runnable task) {
+        int index = key == null
+            ? Math.floorMod(roundRobin.getAndIncrement(), lanes.length)
+            : Math.floorMod(key.hashCode(), lanes.length);
+
+        lanes[index].submit(task);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A serial queue of tasks. At most one task per lane is ever handed to the backing executor; when it
+     * finishes, it schedules the next one in line (if any).
+     */
+    private class Lane {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        private synchronized void submit(Runnable task) {
+            while (tasks.size() >= laneCapacity) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("Interrupted waiting for room in lane", e);
+                }
+            }
+
+            tasks.add(task);
+            if (!running) {
+                running = true;
+                try {
+                    executor.execute(this::drain);
+                }
+                catch (RejectedExecutionException e) {
+                    // Nothing is going to drain the lane, so don't leave it looking like something will.
+                    tasks.remove(task);
+                    running = false;
+                    throw e;
+                }
+            }
+        }
+
+        private void drain() {
+            Runnable task;
+            while ((task = next()) != null) {
+                try {
+                    task.run();
+                }
+                catch (RuntimeException e) {
+                    // The task is responsible for its own error handling. Just don't let it stall the lane.
+                }
+            }
+        }
+
+        private synchronized Runnable next() {
+            var task = tasks.poll();
+            if (task == null) {
+                running = false;
+            }
+            else {
+                notifyAll();
+            }
+            return task;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import static io.bridgekit.nats.Utils.hasText;
+
+/**
+ * An in-memory, always up-to-date copy of a KeyValueStore's records along with indexes on the fields you like to
+ * search by. Rather than scanning and decoding the whole bucket for every search, a query looks up the sorted set
+ * of ids for each term and walks the smallest one, checking the other terms and any ranges as it goes. That's a
+ * set intersection over ids we already have in memory; no trips to NATS and no JSON.
+ * <p>
+ * Use KeyValueStore.materialize() to load it from the bucket and keep it current with a watcher. The records
+ * you get back are shared with the index, so treat them as read-only.
+ *
+ * <pre>
+ * var index = new QueryIndex&lt;Order&gt;()
+ *     .term("status", order -&gt; order.status)
+ *     .range("total", order -&gt; order.total);
+ *
+ * var shipped = index.query().where("status", "SHIPPED").between("total", 1000, 5000).limit(20).list();
+ * </pre>
+ */
+public class QueryIndex<T> {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, T> records = new TreeMap<>();
+    private final Map<String, TermIndex<T>> terms = new HashMap<>();
+    private final Map<String, ToLongFunction<T>> ranges = new HashMap<>();
+
+    /**
+     * Indexes a field for exact-match lookups (e.g. status = "SHIPPED"). Records where the field is null just
+     * aren't in that index. Declare all of your fields before loading any records.
+     *
+     * @return this
+     */
+    public QueryIndex<T> term(String name, Function<T, String> field) {
+        terms.put(name, new TermIndex<>(field));
+        return this;
+    }
+
+    /**
+     * Lets you search a numeric field by range (e.g. 1000 &lt;= total &lt;= 5000). Ranges are checked against
+     * each candidate record as the query walks them rather than looked up in a separate index, so a wide range
+     * doesn't mean copying every id in it on every search. They're fastest alongside a term; a range on its own
+     * walks the records in id order until it fills the page. Declare all of your fields before loading any
+     * records.
+     *
+     * @return this
+     */
+    public QueryIndex<T> range(String name, ToLongFunction<T> field) {
+        ranges.put(name, field);
+        return this;
+    }
+
+    /**
+     * Adds/replaces the record with the given id, moving it to the right spot in each index.
+     */
+    void put(String id, T record) {
+        lock.writeLock().lock();
+        try {
+            var previous = records.put(id, record);
+            if (previous != null) {
+                terms.values().forEach(index -> index.remove(id, previous));
+            }
+            terms.values().forEach(index -> index.add(id, record));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Drops the record with the given id (if we have it) from the index.
+     */
+    void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            var previous = records.remove(id);
+            if (previous != null) {
+                terms.values().forEach(index -> index.remove(id, previous));
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The number of records currently in the index.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return records.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a new query. With no criteria at all, it just pages through every record in id order.
+     */
+    public Query query() {
+        return new Query();
+    }
+
+    /**
+     * The criteria for a single search. Results always come back sorted by id, which is what makes the id of
+     * the last result a stable cursor for fetching the next page.
+     */
+    public class Query {
+        private final Map<String, String> where = new HashMap<>();
+        private final Map<String, long[]> between = new HashMap<>();
+        private String after;
+        private int limit = Integer.MAX_VALUE;
+
+        private Query() {
+        }
+
+        /** Only include records whose indexed field equals this value. Null/blank values are ignored. */
+        public Query where(String name, String value) {
+            if (!terms.containsKey(name)) {
+                throw new IllegalArgumentException("No such term index: " + name);
+            }
+            if (hasText(value)) {
+                where.put(name, value);
+            }
+            return this;
+        }
+
+        /** Only include records whose indexed numeric field is between min and max (inclusive). */
+        public Query between(String name, long min, long max) {
+            if (!ranges.containsKey(name)) {
+                throw new IllegalArgumentException("No such range index: " + name);
+            }
+            between.put(name, new long[] { min, max });
+            return this;
+        }
+
+        /** Only include records whose id comes after this one (i.e. the id of the last record on the previous page). */
+        public Query after(String cursor) {
+            this.after = hasText(cursor) ? cursor : null;
+            return this;
+        }
+
+        /** The most records to return. */
+        public Query limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Runs the query, returning the matching records in id order.
+         */
+        public List<T> list() {
+            lock.readLock().lock();
+            try {
+                var candidates = new ArrayList<NavigableSet<String>>();
+                where.forEach((name, value) -> candidates.add(terms.get(name).ids(value)));
+
+                var results = new ArrayList<T>(Math.min(limit, 64));
+                if (candidates.isEmpty()) {
+                    var page = after == null ? records : records.tailMap(after, false);
+                    for (var record : page.values()) {
+                        if (results.size() >= limit) {
+                            break;
+                        }
+                        if (inRanges(record)) {
+                            results.add(record);
+                        }
+                    }
+                    return results;
+                }
+
+                // Walk the smallest set and make sure each id is in all of the others (and in range), too.
+                candidates.sort(Comparator.comparingInt(NavigableSet::size));
+                var smallest = candidates.get(0);
+                var page = after == null ? smallest : smallest.tailSet(after, false);
+                for (var id : page) {
+                    if (results.size() >= limit) {
+                        break;
+                    }
+                    if (containedInAll(id, candidates)) {
+                        var record = records.get(id);
+                        if (inRanges(record)) {
+                            results.add(record);
+                        }
+                    }
+                }
+                return results;
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private boolean containedInAll(String id, List<NavigableSet<String>> candidates) {
+            for (int i = 1; i < candidates.size(); i++) {
+                if (!candidates.get(i).contains(id)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean inRanges(T record) {
+            for (var range : between.entrySet()) {
+                var value = ranges.get(range.getKey()).applyAsLong(record);
+                var bounds = range.getValue();
+                if (value < bounds[0] || value > bounds[1]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Maps each distinct value of a field to the sorted set of ids of the records that have it.
+     */
+    private static class TermIndex<T> {
+        private final Function<T, String> field;
+        private final Map<String, NavigableSet<String>> ids = new HashMap<>();
+
+        private TermIndex(Function<T, String> field) {
+            this.field = field;
+        }
+
+        private void add(String id, T record) {
+            var value = field.apply(record);
+            if (value != null) {
+                ids.computeIfAbsent(value, v -> new TreeSet<>()).add(id);
+            }
+        }
+
+        private void remove(String id, T record) {
+            var value = field.apply(record);
+            var matches = value == null ? null : ids.get(value);
+            if (matches != null && matches.remove(id) && matches.isEmpty()) {
+                ids.remove(value);
+            }
+        }
+
+        private NavigableSet<String> ids(String value) {
+            return ids.getOrDefault(value, Collections.emptyNavigableSet());
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.Utils;
+import io.bridgekit.nats.sampleapp.NatsConnections.TrafficClass;
+import io.nats.client.JetStreamApiException;
+import io.nats.client.KeyValue;
+import io.nats.client.api.KeyValueConfiguration;
+import io.nats.client.api.StorageType;
+
+/**
+ * Limits how many requests each account can make per window (e.g. 600 per minute), across every instance of
+ * the API. The global count of requests each account has made in the current window lives in a NATS k/v bucket,
+ * but checking it on every request would put a network round trip in front of every API call.
+ * <p>
+ * Instead, each instance leases a slice of an account's quota (say 50 requests) from the bucket and hands
+ * those out locally. tryAcquire() only ever touches memory; when a slice starts running low, we lease the next
+ * one in the background. Leases bump the bucket's count with a revision check, so two instances can never
+ * lease the same part of the quota. Every so often, slices that an instance isn't using are given back so other
+ * instances can have them.
+ * <p>
+ * It's a sliding window (well, the usual approximation of one): the previous window's count still weighs on
+ * the current one in proportion to how much of it overlaps, so you can't squeeze in twice the limit by
+ * bunching requests around a window boundary.
+ * <p>
+ * The very first requests an instance sees for an account (before it has a quota) are let through on credit and
+ * charged to the account with the first quota. The same goes for requests that show up after we've given an idle
+ * account's quota back, or while a lease is still on its way. Once a lease comes back empty, the account really is
+ * at its limit and we stop extending credit, so an instance can go over the limit by at most that credit.
+ */
+public class RateLimiter implements Closeable {
+    private static final int MAX_RESERVE_ATTEMPTS = 10;
+    private static final int WRONG_LAST_SEQUENCE = 10071;
+
+    private final Logger logger = Logger.instance(RateLimiter.class);
+    private final NatsConnections.Lease nats;
+    private final KeyValue kv;
+    private final long limit;
+    private final long windowMillis;
+    private final Map<String, Quota> quotas = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService background;
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder leaseRequests = new LongAdder();
+    private final int sliceSize;
+    private final int credit;
+    private final LongSupplier clock;
+
+    /**
+     * Leases a tenth of the limit at a time (but no more than 50), and lets a quarter of a slice through on
+     * credit.
+     *
+     * @param bucketName The k/v bucket that holds the global counts.
+     * @param limit      How many requests each account may make per window.
+     * @param window     The length of the window (e.g. one minute).
+     */
+    public RateLimiter(String bucketName, long limit, Duration window) {
+        this(bucketName, limit, window, defaultSliceSize(limit), Math.max(1, defaultSliceSize(limit) / 4));
+    }
+
+    /**
+     * @param bucketName The k/v bucket that holds the global counts.
+     * @param limit      How many requests each account may make per window.
+     * @param window     The length of the window (e.g. one minute).
+     * @param sliceSize  How much of an account's quota to lease at a time. Bigger slices mean fewer trips to
+     *                   NATS, but more quota sitting idle on one instance while another one is turning requests
+     *                   away.
+     * @param credit     How many requests an instance lets through for an account before its first lease comes
+     *                   back. This can't be more than a slice.
+     */
+    public RateLimiter(String bucketName, long limit, Duration window, int sliceSize, int credit) {
+        this(NatsConnections.shared().acquire(TrafficClass.KEY_VALUE), bucketName, limit, window, sliceSize, credit);
+    }
+
+    private RateLimiter(NatsConnections.Lease nats, String bucketName, long limit, Duration window, int sliceSize, int credit) {
+        this(nats, connectBucket(nats, bucketName, window), limit, window, sliceSize, credit, newBackgroundThread(), System::currentTimeMillis);
+    }
+
+    /**
+     * The constructor that everything funnels into. Tests use it directly so they can supply their own bucket,
+     * background executor, and clock.
+     */
+    RateLimiter(NatsConnections.Lease nats, KeyValue kv, long limit, Duration window, int sliceSize, int credit, ScheduledExecutorService background, LongSupplier clock) {
+        if (sliceSize < 1) {
+            throw new IllegalArgumentException("sliceSize must be at least 1: " + sliceSize);
+        }
+        if (credit < 0) {
+            throw new IllegalArgumentException("credit can't be negative: " + credit);
+        }
+        this.nats = nats;
+        this.kv = kv;
+        this.limit = limit;
+        this.windowMillis = window.toMillis();
+        this.sliceSize = sliceSize;
+        this.credit = Math.min(credit, sliceSize);
+        this.background = background;
+        this.clock = clock;
+
+        long reconcileMillis = Math.max(100, windowMillis / 10);
+        background.scheduleWithFixedDelay(this::reconcile, reconcileMillis, reconcileMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the bucket if it doesn't exist yet. Counts are only interesting for this window and the previous
+     * one, so we let NATS expire the rest.
+     */
+    private static KeyValue connectBucket(NatsConnections.Lease nats, String bucketName, Duration window) {
+        try {
+            nats.connection().keyValueManagement().create(KeyValueConfiguration.builder()
+                .name(bucketName)
+                .storageType(StorageType.Memory)
+                .ttl(window.multipliedBy(3))
+                .build());
+            return nats.connection().keyValue(bucketName);
+        }
+        catch (Exception e) {
+            nats.close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ScheduledExecutorService newBackgroundThread() {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "rate-limiter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static int defaultSliceSize(long limit) {
+        return (int) Math.max(1, Math.min(50, limit / 10));
+    }
+
+    /**
+     * Decides whether the account can make another request right now. This never waits on NATS.
+     *
+     * @param account The account (or client address, API key, etc.) the request counts against.
+     * @return True if the request is allowed; false if the account is over its limit.
+     */
+    public boolean tryAcquire(String account) {
+        long window = clock.getAsLong() / windowMillis;
+        var quota = quotas.get(account);
+        if (quota == null || quota.window != window) {
+            quota = quotas.compute(account, (key, existing) -> existing != null && existing.window == window
+                ? existing
+                : new Quota(window, credit));
+        }
+
+        quota.lastUsed = clock.getAsLong();
+        long remaining = quota.remaining.decrementAndGet();
+        if (remaining < sliceSize / 2) {
+            leaseMore(account, quota);
+        }
+        if (remaining < 0) {
+            quota.remaining.incrementAndGet();
+            if (!borrow(quota)) {
+                rejected.increment();
+                return false;
+            }
+        }
+        allowed.increment();
+        return true;
+    }
+
+    /**
+     * Running out of local quota doesn't mean the account is over its limit. Usually it just means reconcile()
+     * gave our unused quota back while the account sat idle, or a lease hasn't come back yet. Until a lease
+     * tells us the window really is full, we let requests through on credit, just like a brand new quota does,
+     * and the next lease charges them to the account.
+     */
+    private boolean borrow(Quota quota) {
+        if (quota.exhausted) {
+            return false;
+        }
+        while (true) {
+            long owed = quota.owed.get();
+            if (owed >= credit) {
+                return false;
+            }
+            if (quota.owed.compareAndSet(owed, owed + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The number of seconds until the current window ends, which is a decent hint for a Retry-After header.
+     */
+    public long retryAfterSeconds() {
+        long untilNextWindow = windowMillis - clock.getAsLong() % windowMillis;
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(untilNextWindow));
+    }
+
+    /** The number of requests let through. */
+    public long allowed() {
+        return allowed.sum();
+    }
+
+    /** The number of requests turned away because the account was over its limit. */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /** The number of times we went to NATS for more quota. */
+    public long leaseRequests() {
+        return leaseRequests.sum();
+    }
+
+    /**
+     * Asks NATS for another slice of the account's quota in the background. If we already asked recently and
+     * the window was full, we hold off for a bit rather than asking again on every rejected request.
+     */
+    private void leaseMore(String account, Quota quota) {
+        if (clock.getAsLong() < quota.retryAt || !quota.leasing.compareAndSet(false, true)) {
+            return;
+        }
+
+        background.execute(() -> {
+            long owed = quota.owed.getAndSet(0);
+            try {
+                long granted = reserve(account, quota.window, owed, sliceSize);
+                quota.remaining.addAndGet(granted);
+                quota.exhausted = granted == 0;
+                if (granted == 0) {
+                    quota.retryAt = clock.getAsLong() + Math.max(50, windowMillis / 20);
+                }
+            }
+            catch (Exception e) {
+                // We never charged the credit to the account, so it's still owed; the next lease can pay it.
+                quota.owed.addAndGet(owed);
+                logger.error(e, "Unable to lease rate limit quota: %s", account);
+                quota.retryAt = clock.getAsLong() + 1000;
+            }
+            finally {
+                quota.leasing.set(false);
+            }
+        });
+    }
+
+    /**
+     * Adds to the account's global count for the window: whatever we already let through on credit, plus as
+     * much of a new slice as the limit allows. Returns how much of the slice we got.
+     */
+    private long reserve(String account, long window, long owed, long slice) throws Exception {
+        var key = key(account, window);
+        for (int attempt = 1; attempt <= MAX_RESERVE_ATTEMPTS; attempt++) {
+            leaseRequests.increment();
+            var entry = kv.get(key);
+            long used = entry == null ? 0 : entry.getValueAsLong();
+
+            var previous = kv.get(key(account, window - 1));
+            double overlap = 1.0 - (double) (clock.getAsLong() % windowMillis) / windowMillis;
+            long previousUsed = previous == null ? 0 : (long) (previous.getValueAsLong() * overlap);
+
+            long available = limit - used - previousUsed - owed;
+            long granted = Math.max(0, Math.min(slice, available));
+            if (granted == 0 && owed == 0) {
+                return 0;
+            }
+
+            if (write(key, entry == null ? -1 : entry.getRevision(), used + owed + granted)) {
+                return granted;
+            }
+            Thread.sleep(attempt);
+        }
+        throw new IllegalStateException("Too much contention leasing quota: " + account);
+    }
+
+    /**
+     * Hands back quota that an instance has been sitting on, so other instances can lease it. We give back the
+     * unused part of any lease that hasn't been touched in a while, and forget leases from old windows.
+     */
+    void reconcile() {
+        long now = clock.getAsLong();
+        long window = now / windowMillis;
+        for (var entry : quotas.entrySet()) {
+            var account = entry.getKey();
+            var quota = entry.getValue();
+            if (quota.window != window) {
+                quotas.remove(account, quota);
+                continue;
+            }
+            if (now - quota.lastUsed < windowMillis / 10 || quota.leasing.get()) {
+                continue;
+            }
+
+            long unused = quota.remaining.getAndSet(0);
+            if (unused <= 0) {
+                continue;
+            }
+            try {
+                release(account, window, unused);
+            }
+            catch (Exception e) {
+                logger.error(e, "Unable to give back rate limit quota: %s", account);
+            }
+        }
+    }
+
+    private void release(String account, long window, long unused) throws Exception {
+        var key = key(account, window);
+        for (int attempt = 1; attempt <= MAX_RESERVE_ATTEMPTS; attempt++) {
+            var entry = kv.get(key);
+            if (entry == null) {
+                return;
+            }
+            long used = Math.max(0, entry.getValueAsLong() - unused);
+            if (write(key, entry.getRevision(), used)) {
+                return;
+            }
+            Thread.sleep(attempt);
+        }
+    }
+
+    /**
+     * Writes the count only if nobody else has since we read it. Returns false if someone beat us to it.
+     */
+    private boolean write(String key, long revision, long count) throws IOException, JetStreamApiException {
+        var value = String.valueOf(count).getBytes(UTF_8);
+        try {
+            if (revision < 0) {
+                kv.create(key, value);
+            }
+            else {
+                kv.update(key, value, revision);
+            }
+            return true;
+        }
+        catch (JetStreamApiException e) {
+            if (e.getApiErrorCode() != WRONG_LAST_SEQUENCE) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * K/V keys can only contain letters, numbers, and a few symbols, so scrub anything else out of the account
+     * (IPv6 addresses, emails, etc.).
+     */
+    private static String key(String account, long window) {
+        return account.replaceAll("[^A-Za-z0-9_-]", "_") + "." + window;
+    }
+
+    @Override
+    public void close() {
+        background.shutdown();
+        logger.info("Rate limiter: %d allowed, %d rejected, %d lease requests", allowed(), rejected(), leaseRequests());
+        Utils.closeQuietly(nats);
+    }
+
+    /**
+     * One account's slice of quota for one window. The credit we start out with hasn't been charged against the
+     * account yet, so it's owed until the first lease pays it off.
+     */
+    private static class Quota {
+        private final long window;
+        private final AtomicLong remaining;
+        private final AtomicLong owed;
+        private final AtomicBoolean leasing = new AtomicBoolean();
+        private volatile long lastUsed;
+        private volatile long retryAt;
+        private volatile boolean exhausted;
+
+        private Quota(long window, long credit) {
+            this.window = window;
+            this.remaining = new AtomicLong(credit);
+            this.owed = new AtomicLong(credit);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+
+/**
+ * Makes field-by-field copies of our records. Our DTOs only hold strings and primitives, so a shallow copy
+ * is a real copy, and it's a lot cheaper than a trip through JSON. The caches use this to hand out records
+ * that callers are free to modify without corrupting what's cached.
+ */
+class RecordCopier<T> {
+    private final Constructor<T> constructor;
+    private final Field[] fields;
+
+    RecordCopier(Class<T> type) {
+        try {
+            this.constructor = type.getDeclaredConstructor();
+            this.constructor.setAccessible(true);
+            this.fields = Arrays.stream(type.getDeclaredFields())
+                .filter(field -> !Modifier.isStatic(field.getModifiers()))
+                .peek(field -> field.setAccessible(true))
+                .toArray(Field[]::new);
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Cached types need a no-arg constructor: " + type.getName(), e);
+        }
+    }
+
+    T copy(T value) {
+        try {
+            var copy = constructor.newInstance();
+            for (var field : fields) {
+                field.set(copy, field.get(value));
+            }
+            return copy;
+        }
+        catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.ArrayList;
+
+import static io.bridgekit.nats.Utils.parseInt;
+import io.bridgekit.nats.Logger;
+import io.bridgekit.nats.sampleapp.NatsConnections.TrafficClass;
+import io.nats.client.KeyValue;
+import io.nats.client.api.KeyValueConfiguration;
+import io.nats.client.api.StorageType;
+
+/**
+ * Changes the number of shards a KeyValueStore is spread over. Because shards are picked by consistent hashing,
+ * most keys stay put; we only move the ones whose owner changed. Each one is copied to its new shard and then
+ * deleted from its old one, so a key is never missing from both. When shrinking, the buckets that are no longer
+ * used are deleted once they've been emptied out.
+ * <p>
+ * Stop the app while this runs. Running instances only know about the old layout, so they'd keep reading and
+ * writing moved records in the wrong buckets.
+ *
+ * <pre>
+ * # Usage
+ * make demo-app-reshard RESHARD_BUCKET=fake-db-orders RESHARD_FROM=1 RESHARD_TO=4
+ * </pre>
+ */
+public class Resharder {
+    private static final Logger logger = Logger.instance(Resharder.class);
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            logger.info("Usage: Resharder {bucket} {fromShards} {toShards}");
+            System.exit(1);
+        }
+
+        reshard(args[0], parseInt(args[1]), parseInt(args[2]));
+        logger.info("Bye, bye!");
+        System.exit(0); // the shared NATS connection's threads would otherwise keep us alive
+    }
+
+    /**
+     * Moves every record in the logical store to the shard that owns it under the new shard count.
+     *
+     * @param bucketName The store's bucket name (i.e. the name of shard 0).
+     * @param fromShards How many shards the store has right now.
+     * @param toShards   How many shards you want it to have.
+     * @return The number of records that had to move.
+     */
+    public static long reshard(String bucketName, int fromShards, int toShards) {
+        if (fromShards < 1 || toShards < 1) {
+            throw new IllegalArgumentException("Shard counts must be at least 1: " + fromShards + " -> " + toShards);
+        }
+
+        try (var lease = NatsConnections.shared().acquire(TrafficClass.KEY_VALUE)) {
+            var nats = lease.connection();
+            var management = nats.keyValueManagement();
+            var ring = new ConsistentHash(toShards);
+
+            var targets = new ArrayList<KeyValue>(toShards);
+            for (int shard = 0; shard < toShards; shard++) {
+                var shardName = KeyValueStore.shardBucketName(bucketName, shard);
+                management.create(KeyValueConfiguration.builder()
+                    .name(shardName)
+                    .storageType(StorageType.File)
+                    .build());
+                targets.add(nats.keyValue(shardName));
+            }
+
+            long moved = 0;
+            for (int shard = 0; shard < fromShards; shard++) {
+                var shardName = KeyValueStore.shardBucketName(bucketName, shard);
+                var source = nats.keyValue(shardName);
+                long movedFromShard = 0;
+
+                var scanner = KeyValueStore.openScanner(nats.jetStream(), shardName, KeyValueStore.DEFAULT_SCAN_BATCH_SIZE);
+                try {
+                    while (scanner.hasNext()) {
+                        var msg = scanner.next();
+                        var key = KeyValueStore.keyOf(msg);
+                        int owner = ring.shardFor(key);
+                        if (owner != shard) {
+                            targets.get(owner).put(key, msg.getData());
+                            source.delete(key);
+                            movedFromShard++;
+                        }
+                    }
+                }
+                finally {
+                    scanner.close();
+                }
+
+                logger.info("Moved %d records out of %s", movedFromShard, shardName);
+                moved += movedFromShard;
+            }
+
+            // Everything in these was just moved to a lower shard, so there's nothing left worth keeping.
+            for (int shard = toShards; shard < fromShards; shard++) {
+                var shardName = KeyValueStore.shardBucketName(bucketName, shard);
+                management.delete(shardName);
+                logger.info("Deleted unused shard %s", shardName);
+            }
+
+            logger.info("Resharded %s from %d to %d shards; moved %d records", bucketName, fromShards, toShards, moved);
+            return moved;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
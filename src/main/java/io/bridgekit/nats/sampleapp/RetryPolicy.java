@@ -0,0 +1,108 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Describes what a route should do when its handler throws. Rather than immediately redelivering (which turns
+ * a downstream blip into a stampede), failed messages are nak'd with an exponentially growing, jittered delay.
+ * Once a message has used up all of its deliveries, it's moved to the dead-letter stream with its original
+ * headers so somebody can look at it (and replay it) later instead of it silently disappearing.
+ */
+public class RetryPolicy {
+    private final int maxDeliveries;
+    private final boolean deadLetters;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private Duration heartbeatInterval;
+
+    private RetryPolicy(int maxDeliveries, boolean deadLetters, Duration initialBackoff, Duration maxBackoff) {
+        this.maxDeliveries = maxDeliveries;
+        this.deadLetters = deadLetters;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+    }
+
+    /**
+     * No retries and no dead-lettering; failed messages are logged and acked. This is the default for routes
+     * that don't specify a policy.
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, false, Duration.ZERO, Duration.ZERO);
+    }
+
+    /**
+     * Retries failed messages with exponential backoff: initialBackoff, then 2x, 4x, and so on up to maxBackoff.
+     * Each delay is randomized somewhere between initialBackoff and that ceiling so that a pile of messages that
+     * failed together don't all come back at the same instant.
+     *
+     * @param maxDeliveries  The total number of attempts (including the first) before the message is dead-lettered.
+     *                       1 means no retries: a failed message goes straight to the dead-letter stream.
+     * @param initialBackoff The delay before the first retry.
+     * @param maxBackoff     The cap on how long we'll ever delay a retry.
+     */
+    public static RetryPolicy exponential(int maxDeliveries, Duration initialBackoff, Duration maxBackoff) {
+        if (maxDeliveries < 1) {
+            throw new IllegalArgumentException("maxDeliveries must be at least 1: " + maxDeliveries);
+        }
+        return new RetryPolicy(maxDeliveries, true, initialBackoff, maxBackoff);
+    }
+
+    /**
+     * While a handler is still running, periodically tell NATS we're working on it so it doesn't assume we died
+     * and redeliver the message to somebody else. Pick something comfortably shorter than the consumer's ack wait.
+     *
+     * @return this
+     */
+    public RetryPolicy heartbeat(Duration interval) {
+        this.heartbeatInterval = interval;
+        return this;
+    }
+
+    /**
+     * The total number of attempts a message gets before it's dead-lettered.
+     */
+    public int maxDeliveries() {
+        return maxDeliveries;
+    }
+
+    /**
+     * How often to send "in progress" acks while a handler runs, or null to not bother.
+     */
+    public Duration heartbeatInterval() {
+        return heartbeatInterval;
+    }
+
+    /**
+     * Returns true if failed messages should be parked in the dead-letter stream once they run out of attempts.
+     * That's every policy except none(), even one that only allows a single attempt.
+     */
+    public boolean deadLetters() {
+        return deadLetters;
+    }
+
+    /**
+     * Returns true if a message that just failed on its Nth delivery should be retried.
+     */
+    public boolean shouldRetry(long deliveryCount) {
+        return deliveryCount < maxDeliveries;
+    }
+
+    /**
+     * How long to wait before redelivering a message that just failed on its Nth delivery.
+     */
+    public Duration backoff(long deliveryCount) {
+        long initialMillis = initialBackoff.toMillis();
+        long maxMillis = maxBackoff.toMillis();
+        if (initialMillis <= 0) {
+            return Duration.ZERO;
+        }
+
+        int exponent = (int) Math.min(Math.max(deliveryCount - 1, 0), 30);
+        long ceiling = Math.min(maxMillis, initialMillis << exponent);
+        if (ceiling <= 0) {
+            ceiling = maxMillis; // overflowed the shift; we're way past the cap anyway
+        }
+        return Duration.ofMillis(ThreadLocalRandom.current().nextLong(initialMillis, Math.max(initialMillis, ceiling) + 1));
+    }
+}
@@ -0,0 +1,234 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import io.nats.client.ConsumeOptions;
+import io.nats.client.Message;
+
+/**
+ * Tuning knobs for a single EventStream route. By default, routes run their handler right on the NATS
+ * dispatcher thread, one message at a time. That's simple, but one slow handler holds up every other message
+ * for that consumer. These options let you fan work out to a thread pool while still keeping related
+ * events (e.g. everything for the same order) in order.
+ *
+ * <pre>
+ * stream.on("order.cancelled", "group_payment_refund", RouteOptions.fixedPool(8).partitionBy(msg -> ...), handler);
+ * </pre>
+ */
+public class RouteOptions {
+    private Supplier<ExecutorService> executorFactory;
+    private int lanes;
+    private Function<Message, String> partitionKey;
+    private RetryPolicy retryPolicy;
+    private Integer batchSize;
+    private Long batchBytes;
+    private Integer thresholdPercent;
+    private Long maxAckPending;
+    private Duration ackWait;
+    private int highWaterMark;
+
+    private RouteOptions() {
+        this.lanes = 1;
+        this.partitionKey = msg -> null;
+        this.retryPolicy = RetryPolicy.none();
+    }
+
+    /**
+     * Handle messages on the NATS dispatcher thread, one at a time. This is what you get with on() if you
+     * don't supply options at all.
+     */
+    public static RouteOptions inline() {
+        return new RouteOptions();
+    }
+
+    /**
+     * Handle messages on a dedicated pool of platform threads, with one lane per thread.
+     */
+    public static RouteOptions fixedPool(int threads) {
+        var options = new RouteOptions();
+        options.executorFactory = () -> Executors.newFixedThreadPool(threads);
+        options.lanes = threads;
+        return options;
+    }
+
+    /**
+     * Handle messages on virtual threads, spread across the given number of lanes. Lanes are cheap here, so
+     * feel free to use a lot of them. Virtual threads need JDK 21+; on older JDKs we quietly fall back to a
+     * cached pool of platform threads.
+     */
+    public static RouteOptions virtualThreads(int lanes) {
+        var options = new RouteOptions();
+        options.executorFactory = RouteOptions::newVirtualThreadExecutor;
+        options.lanes = lanes;
+        return options;
+    }
+
+    /**
+     * Determines which lane each message runs on. Messages that produce the same key are always handled
+     * serially in the order NATS delivered them. Messages with different keys may run in parallel. If you
+     * don't supply this, or it returns null, there are no ordering guarantees at all.
+     *
+     * @return this
+     */
+    public RouteOptions partitionBy(Function<Message, String> partitionKey) {
+        this.partitionKey = partitionKey;
+        return this;
+    }
+
+    /**
+     * Determines what happens when the handler throws. Without this, failed messages are logged and acked.
+     * Keep in mind that a retried message goes to the back of the line, so it may be handled after later
+     * events with the same partition key.
+     *
+     * @return this
+     */
+    public RouteOptions retry(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * The most messages the consumer asks NATS for in a single pull. Smaller batches mean less stuff sitting in
+     * client buffers; bigger ones mean fewer round trips.
+     *
+     * @return this
+     */
+    public RouteOptions batchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * Caps the total size of a single pull, so a batch of huge messages can't blow up the heap.
+     *
+     * @return this
+     */
+    public RouteOptions batchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+        return this;
+    }
+
+    /**
+     * How far (as a percent of the batch) the client's buffer has to drain before it pulls the next batch.
+     *
+     * @return this
+     */
+    public RouteOptions thresholdPercent(int thresholdPercent) {
+        this.thresholdPercent = thresholdPercent;
+        return this;
+    }
+
+    /**
+     * The server-side limit on how many messages this consumer group can have delivered but not yet acked.
+     * Once it's hit, NATS stops delivering until some acks come in. This applies across ALL instances.
+     *
+     * @return this
+     */
+    public RouteOptions maxAckPending(long maxAckPending) {
+        this.maxAckPending = maxAckPending;
+        return this;
+    }
+
+    /**
+     * How long NATS waits for an ack before assuming the handler died and redelivering the message. Remember that
+     * messages waiting in a lane's queue are already on the clock.
+     *
+     * @return this
+     */
+    public RouteOptions ackWait(Duration ackWait) {
+        this.ackWait = ackWait;
+        return this;
+    }
+
+    /**
+     * Once this many messages are in-process (queued in lanes or being handled) the route stops pulling from
+     * NATS. It starts again once the backlog drains to half of this. Zero (the default) means never pause. This
+     * only matters when handlers run on a thread pool; inline routes can only ever have one message in-process.
+     *
+     * @return this
+     */
+    public RouteOptions highWaterMark(int highWaterMark) {
+        this.highWaterMark = highWaterMark;
+        return this;
+    }
+
+    /**
+     * The in-process backlog that pauses consumption, or zero if we never pause.
+     */
+    int highWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * The pull settings for this route's consumer. Anything you didn't set uses the jnats defaults.
+     */
+    ConsumeOptions consumeOptions() {
+        var builder = ConsumeOptions.builder();
+        if (batchSize != null) {
+            builder.batchSize(batchSize);
+        }
+        if (batchBytes != null) {
+            builder.batchBytes(batchBytes);
+        }
+        if (thresholdPercent != null) {
+            builder.thresholdPercent(thresholdPercent);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Applies the server-side consumer settings from these options to the consumer spec.
+     */
+    ConsumerSpec configure(ConsumerSpec spec) {
+        if (maxAckPending != null) {
+            spec.maxAckPending(maxAckPending);
+        }
+        if (ackWait != null) {
+            spec.ackWait(ackWait);
+        }
+        return spec;
+    }
+
+    /**
+     * The retry/dead-letter policy for failed messages.
+     */
+    RetryPolicy retryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Returns true if messages should be handled right on the NATS dispatcher thread.
+     */
+    boolean isInline() {
+        return executorFactory == null;
+    }
+
+    /**
+     * Creates the lane executor for a route using these options.
+     */
+    PartitionedExecutor newExecutor() {
+        return new PartitionedExecutor(executorFactory.get(), lanes);
+    }
+
+    /**
+     * Extracts the partition key used to pick a message's lane.
+     */
+    String partitionKey(Message msg) {
+        return partitionKey.apply(msg);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // Reflection so this still compiles/runs on JDK 17.
+            var factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+
+import io.nats.client.api.CompressionOption;
+import io.nats.client.api.DiscardPolicy;
+import io.nats.client.api.RetentionPolicy;
+import io.nats.client.api.StorageType;
+import io.nats.client.api.StreamConfiguration;
+
+/**
+ * A declarative description of a JetStream stream. Rather than sprinkling builder calls around the code that
+ * happens to create the stream, you describe what the stream should look like and the JetStreamProvisioner
+ * makes the server match it (skipping the update entirely if it already does).
+ *
+ * <pre>
+ * StreamSpec.named("EVENT_GATEWAY_ORDERS")
+ *     .subjects("order.>")
+ *     .maxAge(Duration.ofDays(7))
+ *     .compression(CompressionOption.S2);
+ * </pre>
+ */
+public class StreamSpec {
+    private final String name;
+    private String[] subjects = new String[0];
+    private StorageType storageType = StorageType.File;
+    private RetentionPolicy retentionPolicy = RetentionPolicy.Limits;
+    private DiscardPolicy discardPolicy = DiscardPolicy.Old;
+    private long maxMessages = -1;
+    private long maxBytes = -1;
+    private Duration maxAge;
+    private int replicas = 1;
+    private CompressionOption compression = CompressionOption.None;
+    private Duration duplicateWindow;
+
+    private StreamSpec(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Starts a new spec for the stream with this name. By default, it's a file-backed, limits-based stream with
+     * no limits, one replica, no compression, and the server's default duplicate window.
+     */
+    public static StreamSpec named(String name) {
+        return new StreamSpec(name);
+    }
+
+    /** The name of the stream. */
+    public String name() {
+        return name;
+    }
+
+    /** The subjects (wildcards allowed) whose messages are captured by the stream. */
+    public StreamSpec subjects(String... subjects) {
+        this.subjects = subjects;
+        return this;
+    }
+
+    /** Whether the stream is stored on disk or in memory. */
+    public StreamSpec storage(StorageType storageType) {
+        this.storageType = storageType;
+        return this;
+    }
+
+    /** When messages are allowed to be removed: when limits are hit, once all consumers have them, etc. */
+    public StreamSpec retention(RetentionPolicy retentionPolicy) {
+        this.retentionPolicy = retentionPolicy;
+        return this;
+    }
+
+    /** Whether hitting a limit throws away old messages or rejects new ones. */
+    public StreamSpec discard(DiscardPolicy discardPolicy) {
+        this.discardPolicy = discardPolicy;
+        return this;
+    }
+
+    /** The most messages the stream will hold. */
+    public StreamSpec maxMessages(long maxMessages) {
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    /** The most bytes the stream will hold. */
+    public StreamSpec maxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /** How long messages are kept around. */
+    public StreamSpec maxAge(Duration maxAge) {
+        this.maxAge = maxAge;
+        return this;
+    }
+
+    /** How many copies of the stream to keep across a NATS cluster. */
+    public StreamSpec replicas(int replicas) {
+        this.replicas = replicas;
+        return this;
+    }
+
+    /** Server-side compression for stored messages. */
+    public StreamSpec compression(CompressionOption compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /** How long JetStream remembers Nats-Msg-Id values to reject duplicate publishes. */
+    public StreamSpec duplicateWindow(Duration duplicateWindow) {
+        this.duplicateWindow = duplicateWindow;
+        return this;
+    }
+
+    /**
+     * Builds the jnats configuration described by this spec.
+     */
+    public StreamConfiguration toConfiguration() {
+        var builder = StreamConfiguration.builder()
+            .name(name)
+            .subjects(subjects)
+            .storageType(storageType)
+            .retentionPolicy(retentionPolicy)
+            .discardPolicy(discardPolicy)
+            .maxMessages(maxMessages)
+            .maxBytes(maxBytes)
+            .replicas(replicas)
+            .compressionOption(compression);
+
+        if (maxAge != null) {
+            builder.maxAge(maxAge);
+        }
+        if (duplicateWindow != null) {
+            builder.duplicateWindow(duplicateWindow);
+        }
+        return builder.build();
+    }
+}
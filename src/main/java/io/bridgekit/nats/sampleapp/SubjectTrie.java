@@ -0,0 +1,202 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Matches NATS subjects (e.g. "order.placed") against a set of subject patterns that may contain the standard
+ * NATS wildcards; "*" matches exactly one token and ">" matches one or more trailing tokens. Patterns are
+ * compiled into a token trie up front, so matching a subject costs one walk down the trie rather than checking
+ * it against every pattern. Results are memoized per subject since most apps only see a handful of distinct ones.
+ * <p>
+ * Add all of your patterns before you start matching; the memoized results aren't invalidated by add().
+ */
+public class SubjectTrie<T> {
+    /**
+     * We stop memoizing results past this many distinct subjects in case subjects contain ids or something.
+     */
+    private static final int MAX_CACHED_SUBJECTS = 10_000;
+
+    private final Node<T> root = new Node<>();
+    private final Map<String, List<T>> matchCache = new ConcurrentHashMap<>();
+    private int numValues;
+
+    /**
+     * Registers a value that should be returned for any subject matching this pattern.
+     */
+    public synchronized void add(String pattern, T value) {
+        var entry = new Match<>(value, numValues++);
+        var node = root;
+        var tokens = pattern.split("\\.");
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i].equals(">")) {
+                if (i != tokens.length - 1) {
+                    throw new IllegalArgumentException("'>' must be the last token: " + pattern);
+                }
+                node.fullWildcardValues.add(entry);
+                return;
+            }
+            node = node.children.computeIfAbsent(tokens[i], token -> new Node<>());
+        }
+        node.values.add(entry);
+    }
+
+    /**
+     * Returns every value whose pattern matches the given (literal, wildcard-free) subject, in the order they were added.
+     */
+    public List<T> match(String subject) {
+        var cached = matchCache.get(subject);
+        if (cached != null) {
+            return cached;
+        }
+
+        var matches = new ArrayList<Match<T>>();
+        collect(root, subject.split("\\."), 0, matches);
+        matches.sort((a, b) -> Integer.compare(a.order, b.order));
+
+        var result = matches.stream().map(match -> match.value).toList();
+        if (matchCache.size() < MAX_CACHED_SUBJECTS) {
+            matchCache.put(subject, result);
+        }
+        return result;
+    }
+
+    private void collect(Node<T> node, String[] tokens, int index, List<Match<T>> matches) {
+        if (index == tokens.length) {
+            matches.addAll(node.values);
+            return;
+        }
+
+        // ">" needs at least one more token, which we know we have at this point.
+        matches.addAll(node.fullWildcardValues);
+
+        var literal = node.children.get(tokens[index]);
+        if (literal != null) {
+            collect(literal, tokens, index + 1, matches);
+        }
+        var wildcard = node.children.get("*");
+        if (wildcard != null) {
+            collect(wildcard, tokens, index + 1, matches);
+        }
+    }
+
+    /**
+     * Returns true if every subject matched by 'other' is also matched by 'pattern' (e.g. "order.>" covers
+     * "order.placed" and "order.*").
+     */
+    public static boolean covers(String pattern, String other) {
+        var patternTokens = pattern.split("\\.");
+        var otherTokens = other.split("\\.");
+
+        for (int i = 0; i < patternTokens.length; i++) {
+            if (patternTokens[i].equals(">")) {
+                return otherTokens.length > i;
+            }
+            if (i >= otherTokens.length || otherTokens[i].equals(">")) {
+                return false;
+            }
+            if (!patternTokens[i].equals("*") && !patternTokens[i].equals(otherTokens[i])) {
+                return false;
+            }
+        }
+        return patternTokens.length == otherTokens.length;
+    }
+
+    /**
+     * Returns true if there's at least one subject that both patterns match (e.g. "order.*" and "*.placed" both
+     * match "order.placed"), even if neither one covers the other.
+     */
+    public static boolean overlaps(String a, String b) {
+        var aTokens = a.split("\\.");
+        var bTokens = b.split("\\.");
+
+        for (int i = 0; i < aTokens.length && i < bTokens.length; i++) {
+            if (aTokens[i].equals(">") || bTokens[i].equals(">")) {
+                return true;
+            }
+            if (!aTokens[i].equals("*") && !bTokens[i].equals("*") && !aTokens[i].equals(bTokens[i])) {
+                return false;
+            }
+        }
+        return aTokens.length == bTokens.length;
+    }
+
+    /**
+     * Boils a set of route patterns down to the smallest set of non-overlapping consumer filter subjects, since
+     * NATS rejects a consumer whose filters overlap. Patterns covered by another pattern are dropped. Patterns
+     * that only partially overlap (e.g. "order.*" and "*.placed") are replaced by one wildcard that covers them
+     * both ("*.*"), so the consumer may receive a few subjects that none of the routes want. The router just
+     * acks those without handling them.
+     */
+    public static List<String> minimalCover(List<String> patterns) {
+        var result = new ArrayList<String>();
+        for (var pattern : patterns) {
+            addToCover(result, pattern);
+        }
+        return result;
+    }
+
+    /**
+     * Adds the pattern to a cover that has no overlaps yet, keeping it that way. If the pattern overlaps
+     * something, the two are merged and the merged pattern goes back through here, since it's wider than either
+     * of them and may now overlap others, too.
+     */
+    private static void addToCover(List<String> cover, String pattern) {
+        for (var existing : cover) {
+            if (covers(existing, pattern)) {
+                return;
+            }
+        }
+        cover.removeIf(existing -> covers(pattern, existing));
+
+        for (var existing : cover) {
+            if (overlaps(existing, pattern)) {
+                cover.remove(existing);
+                addToCover(cover, merge(existing, pattern));
+                return;
+            }
+        }
+        cover.add(pattern);
+    }
+
+    /**
+     * The narrowest pattern we can easily build that covers both of these overlapping patterns: tokens they agree
+     * on stay, tokens they don't become "*", and once either one hits ">" so does the merged pattern.
+     */
+    private static String merge(String a, String b) {
+        var aTokens = a.split("\\.");
+        var bTokens = b.split("\\.");
+        var merged = new ArrayList<String>(Math.max(aTokens.length, bTokens.length));
+
+        for (int i = 0; i < aTokens.length && i < bTokens.length; i++) {
+            if (aTokens[i].equals(">") || bTokens[i].equals(">")) {
+                merged.add(">");
+                break;
+            }
+            merged.add(aTokens[i].equals(bTokens[i]) ? aTokens[i] : "*");
+        }
+        return String.join(".", merged);
+    }
+
+    private static class Node<T> {
+        private final Map<String, Node<T>> children = new HashMap<>();
+        private final List<Match<T>> values = new ArrayList<>();
+        private final List<Match<T>> fullWildcardValues = new ArrayList<>();
+    }
+
+    /**
+     * A registered value along with the order it was added, so matches come back in registration order.
+     */
+    private static class Match<T> {
+        private final T value;
+        private final int order;
+
+        private Match(T value, int order) {
+            this.value = value;
+            this.order = order;
+        }
+    }
+}
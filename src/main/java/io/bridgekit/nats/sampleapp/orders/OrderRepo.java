@@ -1,15 +1,21 @@
 package io.bridgekit.nats.sampleapp.orders;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
 
+import static io.bridgekit.nats.Utils.closeOnShutdown;
 import static io.bridgekit.nats.Utils.randomAlphanumeric;
 import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_FULFILLED;
 import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_PLACED;
 import static io.bridgekit.nats.sampleapp.orders.OrderService.Order.STATUS_SHIPPED;
 import io.bridgekit.nats.Logger;
 import io.bridgekit.nats.sampleapp.KeyValueStore;
+import io.bridgekit.nats.sampleapp.QueryIndex;
 import io.bridgekit.nats.sampleapp.orders.OrderService.Order;
+import io.bridgekit.nats.sampleapp.orders.OrderService.SearchOrdersRequest;
 
 /**
  * Manages the database read/write operations for our Orders table. In reality, there's no "database".
@@ -18,21 +24,66 @@ import io.bridgekit.nats.sampleapp.orders.OrderService.Order;
  * @see KeyValueStore For more info on how we store the fake data.
  */
 public class OrderRepo {
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /**
+     * How many buckets the records are spread over. If you change this once there's data, stop the app and run
+     * "make demo-app-reshard RESHARD_BUCKET=fake-db-orders RESHARD_FROM={old} RESHARD_TO={new}" first.
+     */
+    private static final int SHARDS = 1;
+
+    /**
+     * How long to wait at startup for the search index to load every orders. A bulk-loaded bucket with millions
+     * of records takes a while, so this is pretty generous.
+     */
+    private static final Duration INDEX_LOAD_TIMEOUT = Duration.ofMinutes(2);
+
     private final Logger logger;
     private final KeyValueStore<Order> store;
+    private final QueryIndex<Order> searchIndex;
 
     public OrderRepo() {
         this.logger = Logger.instance(OrderRepo.class);
-        this.store = new KeyValueStore<>(Order.class, "fake-db-orders");
+        // Orders get read over and over as they move through the workflow (and by the API), so keep the hot ones in memory.
+        this.store = newStore()
+            .nearCache(10_000)
+            .writeBehind(Duration.ofMillis(10));
+        // Makes sure buffered writes land (and we let go of the shared connection) when the app goes down.
+        closeOnShutdown(store);
+
+        // Searches are answered from memory using this index rather than by scanning the bucket.
+        this.searchIndex = new QueryIndex<Order>()
+            .term("status", order -> order.status)
+            .term("itemID", order -> order.itemID)
+            .range("total", order -> order.total);
+        store.materialize(searchIndex, INDEX_LOAD_TIMEOUT);
         populateFakeDataIfEmpty();
     }
 
     /**
-     * Returns all Order records in our datastore. Use your imagination to pretend that this can
-     * filter based on a customer id, status, date, etc.
+     * Builds the store where our orders live. The BulkLoader uses this too, so it writes to the same bucket.
+     */
+    public static KeyValueStore<Order> newStore() {
+        return new KeyValueStore<>(Order.class, "fake-db-orders", SHARDS);
+    }
+
+    /**
+     * Returns the Order records matching the given criteria, sorted by orderID. Use your imagination to
+     * pretend that this can also filter based on a customer id, date, etc.
      */
-    public List<Order> search() {
-        return store.values();
+    public List<Order> search(SearchOrdersRequest req) {
+        var query = searchIndex.query()
+            .where("status", req.status)
+            .where("itemID", req.itemID)
+            .after(req.cursor)
+            .limit(req.limit > 0 ? req.limit : DEFAULT_SEARCH_LIMIT);
+
+        if (req.minTotal != null || req.maxTotal != null) {
+            query.between("total",
+                req.minTotal == null ? Long.MIN_VALUE : req.minTotal,
+                req.maxTotal == null ? Long.MAX_VALUE : req.maxTotal);
+        }
+        return query.list();
     }
 
     /**
@@ -55,11 +106,16 @@ public class OrderRepo {
     public Order create(Order order) {
         order.orderID = randomAlphanumeric(4);
         store.put(order.orderID, order);
+
+        // Everything else in the workflow finds out about the order via events, so make sure it's really in
+        // NATS before we go and tell anyone about it.
+        store.flush();
         return order;
     }
 
     /**
-     * Writes the updated values over the existing order record.
+     * Writes the updated values over the existing order record. This goes through the store's write-behind
+     * buffer, so call flush() if you need it safely stored before moving on.
      *
      * @param order The updated order data to persist.
      * @return The order param, as-is.
@@ -69,6 +125,33 @@ public class OrderRepo {
         return order;
     }
 
+    /**
+     * Blocks until all of the buffered update() calls are safely stored in NATS.
+     */
+    public void flush() {
+        store.flush();
+    }
+
+    /**
+     * Applies changes to the current state of the order, even when other instances are updating the same order
+     * at the same time. If someone else's write sneaks in between our read and our write, we re-read the order
+     * and run your update again, so it shouldn't do anything other than modify the order it's given.
+     *
+     * @param orderID The id of the order record to update.
+     * @param update  Modifies the order and returns it, or returns null if there's nothing to change.
+     * @return The updated order, or empty if the update decided not to change anything.
+     *
+     * @throws NoSuchElementException If there's no record associated with this id.
+     */
+    public Optional<Order> update(String orderID, UnaryOperator<Order> update) {
+        return store.compute(orderID, order -> {
+            if (order == null) {
+                throw new NoSuchElementException("Order not found: " + orderID);
+            }
+            return update.apply(order);
+        });
+    }
+
     /**
      * Rather than starting with an empty database, this will seed our datastore with some fake
      * orders that you can start to play with. It only writes these records if it doesn't look like
@@ -121,5 +204,6 @@ public class OrderRepo {
         order.total = order.price * order.quantity;
         order.status = STATUS_FULFILLED;
         update(order);
+        flush();
     }
 }
@@ -71,7 +71,17 @@ public interface OrderService {
         }
     }
 
+    /**
+     * Every field is optional; leave them out to list all orders. Results are sorted by orderID, so to get the
+     * next page, pass the orderID of the last order you got back as the cursor.
+     */
     class SearchOrdersRequest {
+        public String status;
+        public String itemID;
+        public Long minTotal;
+        public Long maxTotal;
+        public String cursor;
+        public int limit;
     }
 
     class GetOrderRequest {
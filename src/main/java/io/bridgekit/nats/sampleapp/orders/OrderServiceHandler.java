@@ -32,7 +32,7 @@ public class OrderServiceHandler implements OrderService {
     @Override
     public List<Order> searchOrders(SearchOrdersRequest req) {
         logger.info("Searching orders for customer");
-        return orderRepo.search();
+        return orderRepo.search(req == null ? new SearchOrdersRequest() : req);
     }
 
     /**
@@ -76,23 +76,28 @@ public class OrderServiceHandler implements OrderService {
      */
     @Override
     public Order shipOrder(ShipOrderRequest req) {
-        var order = orderRepo.get(req.orderID);
-
-        switch (order.status) {
-        case STATUS_CANCELLED:
-            throw new IllegalStateException("Can't ship cancelled order: " + order.orderID);
-        case STATUS_SHIPPED:
+        var shipped = orderRepo.update(req.orderID, order -> {
+            switch (order.status) {
+            case STATUS_CANCELLED:
+                throw new IllegalStateException("Can't ship cancelled order: " + order.orderID);
+            case STATUS_SHIPPED:
+                return null;
+            default:
+                order.status = STATUS_SHIPPED;
+                order.trackingNumber = randomAlphanumeric(5);
+                return order;
+            }
+        });
+
+        if (shipped.isEmpty()) {
+            var order = orderRepo.get(req.orderID);
             logger.info("Order already shipped: %s", order);
             return order;
-        default:
-            logger.info("Shipping order: %s", req.orderID);
-            order.status = "SHIPPED";
-            order.trackingNumber = randomAlphanumeric(5);
-            order = orderRepo.update(order);
         }
 
-        eventPublisher.publish("order.shipped", order);
-        return order;
+        logger.info("Shipped order: %s", req.orderID);
+        eventPublisher.publish("order.shipped", shipped.get());
+        return shipped.get();
     }
 
     /**
@@ -100,19 +105,22 @@ public class OrderServiceHandler implements OrderService {
      */
     @Override
     public Order cancelOrder(CancelOrderRequest req) {
-        var order = orderRepo.get(req.orderID);
+        var cancelled = orderRepo.update(req.orderID, order -> {
+            if (STATUS_CANCELLED.equals(order.status)) {
+                return null;
+            }
+            order.status = STATUS_CANCELLED;
+            return order;
+        });
 
-        switch (order.status) {
-        case STATUS_CANCELLED:
+        if (cancelled.isEmpty()) {
+            var order = orderRepo.get(req.orderID);
             logger.info("Order already cancelled: %s", order);
             return order;
-        default:
-            logger.info("Cancelling order: %s", order);
-            order.status = "CANCELLED";
-            order = orderRepo.update(order);
         }
 
-        eventPublisher.publish("order.cancelled", order);
-        return order;
+        logger.info("Cancelled order: %s", cancelled.get());
+        eventPublisher.publish("order.cancelled", cancelled.get());
+        return cancelled.get();
     }
 }
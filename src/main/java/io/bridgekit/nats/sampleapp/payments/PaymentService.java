@@ -88,7 +88,17 @@ public interface PaymentService {
         }
     }
 
+    /**
+     * Every field is optional; leave them out to list all transactions. Results are sorted by transactionID, so
+     * to get the next page, pass the transactionID of the last transaction you got back as the cursor.
+     */
     class SearchTransactionsCriteria {
+        public String status;
+        public String processorID;
+        public Long minTotal;
+        public Long maxTotal;
+        public String cursor;
+        public int limit;
     }
 
     class GetTransactionRequest {
@@ -29,7 +29,7 @@ public class PaymentServiceHandler implements PaymentService {
     @Override
     public List<Transaction> searchTransactions(SearchTransactionsCriteria criteria) {
         logger.info("Searching customer's transactions");
-        return transactionRepo.search();
+        return transactionRepo.search(criteria == null ? new SearchTransactionsCriteria() : criteria);
     }
 
     /**
@@ -65,23 +65,29 @@ public class PaymentServiceHandler implements PaymentService {
      */
     @Override
     public Transaction charge(ChargeRequest req) {
-        var transaction = transactionRepo.get(req.transactionID, req.orderID);
-
-        switch (transaction.status) {
-        case STATUS_REFUNDED:
-        case STATUS_CHARGEBACK:
-            throw new IllegalStateException("Transaction already reversed: " + transaction);
-        case STATUS_CHARGED:
+        var transactionID = transactionRepo.get(req.transactionID, req.orderID).transactionID;
+        var charged = transactionRepo.update(transactionID, transaction -> {
+            switch (transaction.status) {
+            case STATUS_REFUNDED:
+            case STATUS_CHARGEBACK:
+                throw new IllegalStateException("Transaction already reversed: " + transaction);
+            case STATUS_CHARGED:
+                return null;
+            default:
+                transaction.status = STATUS_CHARGED;
+                return transaction;
+            }
+        });
+
+        if (charged.isEmpty()) {
+            var transaction = transactionRepo.get(transactionID, "");
             logger.info("Transaction already processed; ignoring charge: %s", transaction);
             return transaction;
-        default:
-            logger.info("Charging payment method: %s", transaction.status);
-            transaction.status = STATUS_CHARGED;
-            transaction = transactionRepo.update(transaction);
         }
 
-        eventPublisher.publish("payment.charged", transaction);
-        return transaction;
+        logger.info("Charged payment method: %s", charged.get());
+        eventPublisher.publish("payment.charged", charged.get());
+        return charged.get();
     }
 
     /**
@@ -89,21 +95,18 @@ public class PaymentServiceHandler implements PaymentService {
      */
     @Override
     public Transaction refund(RefundRequest req) {
-        var transaction = transactionRepo.get(req.transactionID, req.orderID);
+        var transactionID = transactionRepo.get(req.transactionID, req.orderID).transactionID;
+        var refunded = transactionRepo.update(transactionID, transaction -> reverse(transaction, STATUS_REFUNDED));
 
-        switch (transaction.status) {
-        case STATUS_CHARGEBACK:
-        case STATUS_REFUNDED:
+        if (refunded.isEmpty()) {
+            var transaction = transactionRepo.get(transactionID, "");
             logger.info("Transaction already reversed; ignoring refund: %s", transaction);
             return transaction;
-        default:
-            logger.info("Processing refund: %s", transaction);
-            transaction.status = STATUS_REFUNDED;
-            transaction = transactionRepo.update(transaction);
         }
 
-        eventPublisher.publish("payment.refunded", transaction);
-        return transaction;
+        logger.info("Processed refund: %s", refunded.get());
+        eventPublisher.publish("payment.refunded", refunded.get());
+        return refunded.get();
     }
 
     /**
@@ -111,20 +114,32 @@ public class PaymentServiceHandler implements PaymentService {
      */
     @Override
     public Transaction chargeback(ChargebackRequest req) {
-        var transaction = transactionRepo.get(req.transactionID, "");
+        var transactionID = transactionRepo.get(req.transactionID, "").transactionID;
+        var chargedBack = transactionRepo.update(transactionID, transaction -> reverse(transaction, STATUS_CHARGEBACK));
+
+        if (chargedBack.isEmpty()) {
+            var transaction = transactionRepo.get(transactionID, "");
+            logger.info("Transaction already reversed; ignoring chargeback: %s", transaction);
+            return transaction;
+        }
 
+        logger.info("Processed chargeback: %s", chargedBack.get());
+        eventPublisher.publish("payment.chargeback", chargedBack.get());
+        return chargedBack.get();
+    }
+
+    /**
+     * Moves the transaction into one of the "money went back to the customer" states, or returns null if it's
+     * already been reversed one way or the other.
+     */
+    private Transaction reverse(Transaction transaction, String status) {
         switch (transaction.status) {
         case STATUS_CHARGEBACK:
         case STATUS_REFUNDED:
-            logger.info("Transaction already reversed; ignoring chargeback: %s", transaction);
-            return transaction;
+            return null;
         default:
-            logger.info("Processing chargeback: %s", transaction);
-            transaction.status = STATUS_CHARGEBACK;
-            transaction = transactionRepo.update(transaction);
+            transaction.status = status;
+            return transaction;
         }
-
-        eventPublisher.publish("payment.chargeback", transaction);
-        return transaction;
     }
 }
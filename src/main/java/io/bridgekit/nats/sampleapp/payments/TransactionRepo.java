@@ -1,8 +1,12 @@
 package io.bridgekit.nats.sampleapp.payments;
 
+import java.time.Duration;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
 
+import static io.bridgekit.nats.Utils.closeOnShutdown;
 import static io.bridgekit.nats.Utils.randomAlphanumeric;
 import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.PROCESSOR_APPLE_PAY;
 import static io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction.PROCESSOR_STRIPE;
@@ -12,6 +16,8 @@ import static java.lang.String.format;
 import io.bridgekit.nats.Logger;
 import io.bridgekit.nats.Utils;
 import io.bridgekit.nats.sampleapp.KeyValueStore;
+import io.bridgekit.nats.sampleapp.QueryIndex;
+import io.bridgekit.nats.sampleapp.payments.PaymentService.SearchTransactionsCriteria;
 import io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction;
 
 /**
@@ -21,20 +27,71 @@ import io.bridgekit.nats.sampleapp.payments.PaymentService.Transaction;
  * @see KeyValueStore For more info on how we store the fake data.
  */
 public class TransactionRepo {
+    private static final String BY_ORDER_ID = "orderID";
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /**
+     * How many buckets the records are spread over. If you change this once there's data, stop the app and run
+     * "make demo-app-reshard RESHARD_BUCKET=fake-db-transactions RESHARD_FROM={old} RESHARD_TO={new}" first.
+     */
+    private static final int SHARDS = 1;
+
+    /**
+     * How long to wait at startup for the search index to load every transactions. A bulk-loaded bucket with millions
+     * of records takes a while, so this is pretty generous.
+     */
+    private static final Duration INDEX_LOAD_TIMEOUT = Duration.ofMinutes(2);
+
     private final Logger logger;
     private final KeyValueStore<Transaction> store;
+    private final QueryIndex<Transaction> searchIndex;
 
     public TransactionRepo() {
         this.logger = Logger.instance(TransactionRepo.class);
-        this.store = new KeyValueStore<>(Transaction.class, "fake-db-transactions");
+        // Refunds and chargebacks look transactions up repeatedly, so keep the hot ones in memory.
+        this.store = newStore()
+            .nearCache(10_000)
+            .writeBehind(Duration.ofMillis(10));
+        // Makes sure buffered writes land (and we let go of the shared connection) when the app goes down.
+        closeOnShutdown(store);
+
+        // Searches are answered from memory using this index rather than by scanning the bucket.
+        this.searchIndex = new QueryIndex<Transaction>()
+            .term("status", t -> t.status)
+            .term("processorID", t -> t.processorID)
+            .range("total", t -> t.total);
+        store.materialize(searchIndex, INDEX_LOAD_TIMEOUT);
         populateFakeDataIfEmpty();
     }
 
     /**
-     * Returns a list of the unique transactions in the DB. Pretend that we're filtering based on customer :)
+     * Builds the store where our transactions live, along with its orderID index. The BulkLoader uses this too,
+     * so it writes to the same bucket and keeps the index up to date.
+     */
+    public static KeyValueStore<Transaction> newStore() {
+        return new KeyValueStore<>(Transaction.class, "fake-db-transactions", SHARDS)
+            // Older versions also stored each transaction under its orderID; ignore those leftover copies.
+            .keyedBy(t -> t.transactionID)
+            .index(BY_ORDER_ID, t -> t.orderID);
+    }
+
+    /**
+     * Returns the transactions matching the given criteria, sorted by transactionID. Pretend that we're also
+     * filtering based on customer :)
      */
-    public List<Transaction> search() {
-        return store.values();
+    public List<Transaction> search(SearchTransactionsCriteria criteria) {
+        var query = searchIndex.query()
+            .where("status", criteria.status)
+            .where("processorID", criteria.processorID)
+            .after(criteria.cursor)
+            .limit(criteria.limit > 0 ? criteria.limit : DEFAULT_SEARCH_LIMIT);
+
+        if (criteria.minTotal != null || criteria.maxTotal != null) {
+            query.between("total",
+                criteria.minTotal == null ? Long.MIN_VALUE : criteria.minTotal,
+                criteria.maxTotal == null ? Long.MAX_VALUE : criteria.maxTotal);
+        }
+        return query.list();
     }
 
     /**
@@ -48,7 +105,7 @@ public class TransactionRepo {
     public Transaction get(String transactionID, String orderID) {
         var transaction = Utils.optional(
             () -> store.get(transactionID),
-            () -> store.get(orderID));
+            () -> store.getBy(BY_ORDER_ID, orderID));
 
         return transaction.orElseThrow(() -> {
             var message = format("Transaction not found: %s/%s", transactionID, orderID);
@@ -65,22 +122,50 @@ public class TransactionRepo {
     public Transaction create(Transaction t) {
         t.transactionID = randomAlphanumeric(4);
         store.put(t.transactionID, t);
-        store.put(t.orderID, t);
+
+        // We publish an event about the new transaction right after this, so make sure it's really in NATS first.
+        store.flush();
         return t;
     }
 
     /**
-     * Writes the updated values over the existing transaction record.
+     * Writes the updated values over the existing transaction record. This goes through the store's
+     * write-behind buffer, so call flush() if you need it safely stored before moving on.
      *
      * @param t The updated transaction data to persist.
      * @return The transaction param, as-is.
      */
     public Transaction update(Transaction t) {
         store.put(t.transactionID, t);
-        store.put(t.orderID, t);
         return t;
     }
 
+    /**
+     * Blocks until all of the buffered update() calls are safely stored in NATS.
+     */
+    public void flush() {
+        store.flush();
+    }
+
+    /**
+     * Applies changes to the current state of the transaction, even when other instances are updating it at the
+     * same time. Your update may run more than once if we lose a race, so it should only modify the transaction.
+     *
+     * @param transactionID The id of the transaction to update.
+     * @param update        Modifies the transaction and returns it, or returns null if there's nothing to change.
+     * @return The updated transaction, or empty if the update decided not to change anything.
+     *
+     * @throws NoSuchElementException If there's no transaction with this id.
+     */
+    public Optional<Transaction> update(String transactionID, UnaryOperator<Transaction> update) {
+        return store.compute(transactionID, t -> {
+            if (t == null) {
+                throw new NoSuchElementException("Transaction not found: " + transactionID);
+            }
+            return update.apply(t);
+        });
+    }
+
     /**
      * Rather than starting with an empty database, this will seed our datastore with some fake
      * transactions that you can play with. It only writes these records if it doesn't look like
@@ -129,5 +214,6 @@ public class TransactionRepo {
         transaction.processorID = PROCESSOR_APPLE_PAY;
         transaction.processorToken = randomAlphanumeric(8);
         update(transaction);
+        flush();
     }
 }
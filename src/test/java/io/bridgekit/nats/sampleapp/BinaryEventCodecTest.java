@@ -0,0 +1,146 @@
+package io.bridgekit.nats.sampleapp;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import io.bridgekit.nats.sampleapp.orders.OrderService.Order;
+
+class BinaryEventCodecTest {
+    private final BinaryEventCodec codec = new BinaryEventCodec()
+        .register(1, Order.class, "orderID", "itemID", "itemName", "quantity", "price", "total", "status", "trackingNumber");
+
+    @Test
+    void roundTripsEveryField() {
+        var order = order();
+        order.itemName = "Self-aware Banjo \uD83E\uDE95 (gr\u00F6\u00DFer)"; // multi-byte and supplementary characters
+        order.quantity = -3; // zig-zag should handle negatives, too
+
+        var decoded = codec.decode(codec.encode(order), Order.class);
+
+        assertEquals(order.orderID, decoded.orderID);
+        assertEquals(order.itemID, decoded.itemID);
+        assertEquals(order.itemName, decoded.itemName);
+        assertEquals(order.quantity, decoded.quantity);
+        assertEquals(order.price, decoded.price);
+        assertEquals(order.total, decoded.total);
+        assertEquals(order.status, decoded.status);
+        assertEquals(order.trackingNumber, decoded.trackingNumber);
+    }
+
+    @Test
+    void keepsNullsAndEmptyStringsApart() {
+        var order = order();
+        order.itemName = "";
+        order.trackingNumber = null;
+
+        var decoded = codec.decode(codec.encode(order), Order.class);
+
+        assertEquals("", decoded.itemName);
+        assertNull(decoded.trackingNumber);
+    }
+
+    @Test
+    void decodesIntoTheOriginalTypeWhenAskedForObject() {
+        var decoded = codec.decode(codec.encode(order()), Object.class);
+
+        var order = assertInstanceOf(Order.class, decoded);
+        assertEquals("ORD-123", order.orderID);
+    }
+
+    @Test
+    void decodesIntoOtherTypesByFieldName() {
+        var decoded = codec.decode(codec.encode(order()), OrderRef.class);
+
+        assertEquals("ORD-123", decoded.orderID);
+        assertEquals(4_995, decoded.total);
+    }
+
+    @Test
+    void oldAndNewSchemaVersionsReadEachOther() {
+        var v1 = new BinaryEventCodec().register(9, WidgetV1.class, "name", "count");
+        var v2 = new BinaryEventCodec().register(9, WidgetV2.class, "name", "count", "enabled");
+
+        var oldWidget = new WidgetV1();
+        oldWidget.name = "sprocket";
+        oldWidget.count = 12;
+        var upgraded = v2.decode(v1.encode(oldWidget), WidgetV2.class);
+        assertEquals("sprocket", upgraded.name);
+        assertEquals(12, upgraded.count);
+        assertFalse(upgraded.enabled);
+
+        var newWidget = new WidgetV2();
+        newWidget.name = "gear";
+        newWidget.count = 7;
+        newWidget.enabled = true;
+        var downgraded = v1.decode(v2.encode(newWidget), WidgetV1.class);
+        assertEquals("gear", downgraded.name);
+        assertEquals(7, downgraded.count);
+    }
+
+    @Test
+    void isSmallerThanJson() {
+        var order = order();
+
+        int binarySize = codec.encode(order).length;
+        int jsonSize = new JsonEventCodec().encode(order).length;
+
+        assertTrue(binarySize * 2 < jsonSize, "binary: " + binarySize + " bytes, json: " + jsonSize + " bytes");
+    }
+
+    @Test
+    void rejectsUnregisteredTypes() {
+        assertThrows(IllegalArgumentException.class, () -> codec.encode(new WidgetV1()));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(new byte[] { 42 }, Order.class));
+    }
+
+    @Test
+    void rejectsCorruptStringLengths() {
+        var widgets = new BinaryEventCodec().register(9, WidgetV1.class, "name", "count");
+
+        // Schema 9, then a name that claims to be 2GB, which overflows if you add it to the read position...
+        var overflows = new byte[] { 9, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 'a' };
+        assertThrows(IllegalArgumentException.class, () -> widgets.decode(overflows, WidgetV1.class));
+
+        // ...one that only looks like it fits once you truncate it to an int...
+        var wrapsAround = new byte[] { 9, (byte) 0x82, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x10, 'a' };
+        assertThrows(IllegalArgumentException.class, () -> widgets.decode(wrapsAround, WidgetV1.class));
+
+        // ...and one that's negative.
+        var negative = new byte[] { 9, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01 };
+        assertThrows(IllegalArgumentException.class, () -> widgets.decode(negative, WidgetV1.class));
+    }
+
+    private static Order order() {
+        var order = new Order();
+        order.orderID = "ORD-123";
+        order.itemID = "ITEM-042";
+        order.itemName = "Haunted Toaster";
+        order.quantity = 5;
+        order.price = 999;
+        order.total = 4_995;
+        order.status = Order.STATUS_SHIPPED;
+        order.trackingNumber = "1Z999AA10123456784";
+        return order;
+    }
+
+    public static class OrderRef {
+        public String orderID;
+        public long total;
+    }
+
+    public static class WidgetV1 {
+        public String name;
+        public int count;
+    }
+
+    public static class WidgetV2 {
+        public String name;
+        public int count;
+        public boolean enabled;
+    }
+}
@@ -0,0 +1,82 @@
+package io.bridgekit.nats.sampleapp;
+
+import org.junit.jupiter.api.Test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DecodeCacheTest {
+    private final DecodeCache<Widget> cache = new DecodeCache<>(Widget.class, 100);
+
+    @Test
+    void onlyParsesEachRevisionOnce() {
+        cache.decode("w1", 1, json("sprocket", 1));
+        cache.decode("w1", 1, json("sprocket", 1));
+        cache.decode("w1", 1, json("sprocket", 1));
+
+        assertEquals(1, cache.misses());
+        assertEquals(2, cache.hits());
+    }
+
+    @Test
+    void parsesAgainOnceTheRevisionChanges() {
+        cache.decode("w1", 1, json("sprocket", 1));
+        var updated = cache.decode("w1", 2, json("sprocket", 2));
+
+        assertEquals(2, updated.count);
+        assertEquals(2, cache.misses());
+        assertEquals(0, cache.hits());
+    }
+
+    @Test
+    void ignoresLateOlderRevisions() {
+        cache.decode("w1", 2, json("sprocket", 2));
+        var stale = cache.decode("w1", 1, json("sprocket", 1));
+        var latest = cache.decode("w1", 2, json("sprocket", 2));
+
+        assertEquals(1, stale.count); // you still get what you asked for...
+        assertEquals(2, latest.count); // ...but it doesn't push the newer revision out
+        assertEquals(1, cache.hits());
+    }
+
+    @Test
+    void handsOutCopiesTheCallerCanChange() {
+        var first = cache.decode("w1", 1, json("sprocket", 1));
+        first.name = "changed on the miss";
+
+        var second = cache.decode("w1", 1, json("sprocket", 1));
+        assertEquals("sprocket", second.name);
+        second.name = "changed on the hit";
+
+        var third = cache.decode("w1", 1, json("sprocket", 1));
+        assertEquals("sprocket", third.name);
+        assertNotSame(second, third);
+    }
+
+    @Test
+    void staysWithinMaxEntries() {
+        var small = new DecodeCache<>(Widget.class, 16);
+        for (int i = 0; i < 1_000; i++) {
+            small.decode("w" + i, 1, json("widget-" + i, i));
+        }
+
+        assertTrue(small.size() <= 16, "size: " + small.size());
+        assertEquals(1_000, small.misses());
+
+        // The most recent key always survives eviction, since it's added after making room.
+        var again = small.decode("w999", 1, json("widget-999", 999));
+        assertEquals("widget-999", again.name);
+        assertEquals(1, small.hits());
+    }
+
+    private static byte[] json(String name, int count) {
+        return ("{\"name\":\"" + name + "\",\"count\":" + count + "}").getBytes(UTF_8);
+    }
+
+    public static class Widget {
+        public String name;
+        public int count;
+    }
+}
@@ -0,0 +1,59 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdempotencyFilterTest {
+    private static final Duration WINDOW = Duration.ofSeconds(10);
+
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final IdempotencyFilter filter = new IdempotencyFilter(WINDOW, 1_000, now::get);
+
+    @Test
+    void remembersIdsAcrossRotations() {
+        advance(6_000);
+        filter.record("msg-1");
+        advance(2_000);
+        filter.record("msg-2");
+
+        // msg-2 sits in a generation that rotates out along the way, so it has to survive the previous
+        // generation being dropped while it's still inside the window.
+        advance(3_000);
+        assertTrue(filter.seen("msg-2"));
+        advance(5_000);
+        assertTrue(filter.seen("msg-2"));
+        advance(1_999);
+        assertTrue(filter.seen("msg-2"));
+        assertEquals(3, filter.duplicates());
+    }
+
+    @Test
+    void forgetsIdsOnceTheWindowHasPassed() {
+        filter.record("msg-1");
+
+        advance(WINDOW.toMillis() + 1);
+        assertFalse(filter.seen("msg-1"));
+
+        advance(WINDOW.toMillis());
+        assertFalse(filter.seen("msg-1"));
+        assertEquals(0, filter.duplicates());
+    }
+
+    @Test
+    void neverSawIdsItWasNeverTold() {
+        filter.record("msg-1");
+
+        assertFalse(filter.seen("msg-2"));
+        assertTrue(filter.seen("msg-1"));
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(millis);
+    }
+}
@@ -0,0 +1,93 @@
+package io.bridgekit.nats.sampleapp;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.time.Duration;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import io.nats.client.KeyValue;
+
+class RateLimiterTest {
+    private static final Duration WINDOW = Duration.ofMinutes(1);
+
+    // Start a little way into a window so that nothing below crosses into the next one.
+    private final AtomicLong now = new AtomicLong(WINDOW.toMillis() * 1_000_000 + 1_000);
+
+    @Test
+    void letsRequestsThroughAfterAnIdleGap() {
+        try (var limiter = limiter(emptyBucket())) {
+            assertTrue(limiter.tryAcquire("acct"));
+
+            // Sit idle long enough for reconcile() to hand our unused quota back to the bucket.
+            now.addAndGet(WINDOW.toMillis() / 10 + 1);
+            limiter.reconcile();
+
+            now.addAndGet(1_000);
+            assertTrue(limiter.tryAcquire("acct"));
+            assertTrue(limiter.tryAcquire("acct"));
+            assertEquals(0, limiter.rejected());
+        }
+    }
+
+    @Test
+    void onlyExtendsCreditUntilALeaseComesThrough() {
+        try (var limiter = limiter(brokenBucket())) {
+            // The credit covers the first request; every lease fails, so that's all the account gets.
+            assertTrue(limiter.tryAcquire("acct"));
+            assertFalse(limiter.tryAcquire("acct"));
+            assertFalse(limiter.tryAcquire("acct"));
+            assertEquals(1, limiter.allowed());
+            assertEquals(2, limiter.rejected());
+        }
+    }
+
+    /**
+     * Leases run inline rather than on a background thread so that each test is deterministic.
+     */
+    private RateLimiter limiter(KeyValue kv) {
+        var background = new ScheduledThreadPoolExecutor(1) {
+            @Override
+            public void execute(Runnable task) {
+                task.run();
+            }
+        };
+        return new RateLimiter(null, kv, 600, WINDOW, 4, 1, background, now::get);
+    }
+
+    /**
+     * A bucket that never has any counts in it yet, so every lease gets a full slice.
+     */
+    private static KeyValue emptyBucket() {
+        return bucket(false);
+    }
+
+    /**
+     * A bucket where every call fails, like when NATS is down.
+     */
+    private static KeyValue brokenBucket() {
+        return bucket(true);
+    }
+
+    private static KeyValue bucket(boolean broken) {
+        return (KeyValue) Proxy.newProxyInstance(KeyValue.class.getClassLoader(), new Class<?>[] { KeyValue.class }, (proxy, method, args) -> {
+            if (broken) {
+                throw new IOException("NATS is down");
+            }
+            switch (method.getName()) {
+            case "get":
+                return null;
+            case "create":
+            case "update":
+                return 1L;
+            default:
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}